@@ -51,6 +51,10 @@ import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -60,8 +64,11 @@ import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import app.virtshell.emulator.TerminalBuffer;
+import app.virtshell.emulator.TerminalEmulator;
 import app.virtshell.emulator.TerminalSession;
 import app.virtshell.emulator.TerminalSession.SessionChangedCallback;
+import app.virtshell.emulator.TerminalTrace;
 import app.virtshell.terminal_view.TerminalView;
 
 public final class TerminalActivity extends Activity implements ServiceConnection {
@@ -75,6 +82,18 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     private static final int CONTEXTMENU_RESET_TERMINAL_ID = 7;
     private static final int CONTEXTMEMU_SHUTDOWN = 8;
     private static final int CONTEXTMENU_TOGGLE_IGNORE_BELL = 9;
+    private static final int CONTEXTMENU_TOGGLE_BACKGROUND_EMULATION = 10;
+    private static final int CONTEXTMENU_TOGGLE_RECORDING = 11;
+    private static final int CONTEXTMENU_TOGGLE_TRACE = 12;
+    private static final int CONTEXTMENU_TOGGLE_DISK_HISTORY = 13;
+    private static final int CONTEXTMENU_TOGGLE_SKIP_FRAMES = 14;
+
+    /** The rows of history searched for URLs at a time, and how far each search goes into the next window. */
+    private static final int URL_SEARCH_ROWS = 2000;
+    private static final int URL_SEARCH_OVERLAP_ROWS = 50;
+
+    /** The number of most recent escape sequences kept while tracing, see {@link #toggleTrace()}. */
+    private static final int TRACE_CAPACITY = 8192;
 
     private final int MAX_FONTSIZE = 256;
     private int MIN_FONTSIZE;
@@ -85,6 +104,8 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     ExtraKeysView mExtraKeysView;
     TerminalService mTermService;
     private boolean mIsVisible;
+    /** The file the current session is recorded to, see {@link #toggleRecording()}. */
+    private String mRecordingFile;
 
     @Override
     protected void onCreate(Bundle bundle) {
@@ -99,6 +120,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         registerForContextMenu(mTerminalView);
 
         mSettings = new TerminalPreferences(this);
+        mTerminalView.setSkipFramesDuringFloods(mSettings.isSkipFramesDuringFloodsEnabled());
         mExtraKeysView = findViewById(R.id.extra_keys);
         if (mSettings.isExtraKeysEnabled()) {
             mExtraKeysView.setVisibility(View.VISIBLE);
@@ -404,7 +426,8 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         Log.i(Config.APP_LOG_TAG, "QEMU启动参数: " + processArgs.toString());
 
         TerminalSession session = new TerminalSession(processArgs.toArray(new String[0]),
-            environment.toArray(new String[0]), Config.getDataDirectory(appContext), mTermService);
+            environment.toArray(new String[0]), Config.getDataDirectory(appContext), mTermService,
+            mSettings.isBackgroundEmulationEnabled(), mSettings.isDiskHistoryEnabled() ? appContext.getCacheDir() : null);
 
         Toast.makeText(this, R.string.toast_boot_notification, Toast.LENGTH_LONG).show();
 
@@ -437,6 +460,19 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         menu.add(Menu.NONE, CONTEXTMEMU_SHUTDOWN, Menu.NONE, R.string.menu_shutdown);
         menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_IGNORE_BELL, Menu.NONE, R.string.menu_toggle_ignore_bell)
             .setCheckable(true).setChecked(mSettings.isBellIgnored());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_BACKGROUND_EMULATION, Menu.NONE, R.string.menu_toggle_background_emulation)
+            .setCheckable(true).setChecked(mSettings.isBackgroundEmulationEnabled());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_DISK_HISTORY, Menu.NONE, R.string.menu_toggle_disk_history)
+            .setCheckable(true).setChecked(mSettings.isDiskHistoryEnabled());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_SKIP_FRAMES, Menu.NONE, R.string.menu_toggle_skip_frames)
+            .setCheckable(true).setChecked(mSettings.isSkipFramesDuringFloodsEnabled());
+        TerminalSession session = mTerminalView.getCurrentSession();
+        if (session != null && session.getEmulator() != null) {
+            menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_RECORDING, Menu.NONE, R.string.menu_toggle_recording)
+                .setCheckable(true).setChecked(session.isRecording());
+            menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_TRACE, Menu.NONE, R.string.menu_toggle_trace)
+                .setCheckable(true).setChecked(session.getEmulator().getTrace() != null);
+        }
     }
 
     @Override
@@ -523,6 +559,24 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             case CONTEXTMENU_TOGGLE_IGNORE_BELL:
                 mSettings.setIgnoreBellCharacter(this, !mSettings.isBellIgnored());
                 return true;
+            case CONTEXTMENU_TOGGLE_BACKGROUND_EMULATION:
+                mSettings.setBackgroundEmulation(this, !mSettings.isBackgroundEmulationEnabled());
+                Toast.makeText(this, R.string.toast_background_emulation_restart, Toast.LENGTH_SHORT).show();
+                return true;
+            case CONTEXTMENU_TOGGLE_DISK_HISTORY:
+                mSettings.setDiskHistory(this, !mSettings.isDiskHistoryEnabled());
+                Toast.makeText(this, R.string.toast_disk_history_restart, Toast.LENGTH_SHORT).show();
+                return true;
+            case CONTEXTMENU_TOGGLE_SKIP_FRAMES:
+                mSettings.setSkipFramesDuringFloods(this, !mSettings.isSkipFramesDuringFloodsEnabled());
+                mTerminalView.setSkipFramesDuringFloods(mSettings.isSkipFramesDuringFloodsEnabled());
+                return true;
+            case CONTEXTMENU_TOGGLE_RECORDING:
+                toggleRecording();
+                return true;
+            case CONTEXTMENU_TOGGLE_TRACE:
+                toggleTrace();
+                return true;
             default:
                 return super.onContextItemSelected(item);
         }
@@ -549,6 +603,76 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         }
     }
 
+    /**
+     * Start or stop recording the terminal output to a file in the app's external files directory, from where it can
+     * be pulled for replaying in benchmarks.
+     */
+    private void toggleRecording() {
+        TerminalSession session = mTerminalView.getCurrentSession();
+        if (session == null) {
+            return;
+        }
+
+        if (session.isRecording()) {
+            session.stopRecording();
+            Toast.makeText(this, getString(R.string.toast_recording_saved, mRecordingFile), Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        File recordingsDir = getExternalFilesDir("recordings");
+        if (recordingsDir == null) {
+            Toast.makeText(this, R.string.toast_recording_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File file = new File(recordingsDir, "session-" + System.currentTimeMillis() + ".vshrec");
+        try {
+            session.startRecording(new FileOutputStream(file));
+            mRecordingFile = file.getAbsolutePath();
+        } catch (IOException e) {
+            Log.e(Config.APP_LOG_TAG, "failed to start recording", e);
+            Toast.makeText(this, R.string.toast_recording_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Start tracing the escape sequences processed by the terminal, or stop tracing and save a dump of the trace to a
+     * file in the app's external files directory, followed by the session's screen update counters.
+     */
+    private void toggleTrace() {
+        TerminalSession session = mTerminalView.getCurrentSession();
+        if (session == null) {
+            return;
+        }
+
+        TerminalEmulator emulator = session.getEmulator();
+        StringBuilder dump = new StringBuilder();
+        synchronized (emulator) {
+            TerminalTrace trace = emulator.getTrace();
+            if (trace == null) {
+                emulator.setTrace(new TerminalTrace(TRACE_CAPACITY));
+                return;
+            }
+            emulator.setTrace(null);
+            trace.dump(dump);
+        }
+        dump.append('\n').append(session.getCoalescedWakeups()).append(" coalesced wakeups\n");
+        dump.append(mTerminalView.getCollapsedScreenUpdates()).append(" collapsed screen updates\n");
+
+        File tracesDir = getExternalFilesDir("traces");
+        if (tracesDir == null) {
+            Toast.makeText(this, R.string.toast_trace_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File file = new File(tracesDir, "trace-" + System.currentTimeMillis() + ".txt");
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.append(dump);
+            Toast.makeText(this, getString(R.string.toast_trace_saved, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(Config.APP_LOG_TAG, "failed to save trace", e);
+            Toast.makeText(this, R.string.toast_trace_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     public void showUrlSelection() {
         TerminalSession currentSession = mTerminalView.getCurrentSession();
 
@@ -556,8 +680,24 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             return;
         }
 
-        String text = currentSession.getEmulator().getScreen().getTranscriptText();
-        LinkedHashSet<CharSequence> urlSet = extractUrls(text);
+        TerminalEmulator emulator = currentSession.getEmulator();
+        final Pattern urlPattern = getUrlPattern();
+        LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>();
+        synchronized (emulator) {
+            // Only the history held in memory is searched, as reading back the rows spilled to the scrollback file
+            // would block the UI thread on disk. It is still searched a window of rows at a time to bound the string
+            // sizes. Windows overlap, and URLs reaching the end of a window are left for the next one in case they go on:
+            final TerminalBuffer screen = emulator.getScreen();
+            for (int row = -screen.getInMemoryTranscriptRows(); row < emulator.mRows; row += URL_SEARCH_ROWS) {
+                final int lastRow = row + URL_SEARCH_ROWS + URL_SEARCH_OVERLAP_ROWS - 1;
+                final String text = screen.getSelectedText(0, row, emulator.mColumns, lastRow);
+                Matcher matcher = urlPattern.matcher(text);
+                while (matcher.find()) {
+                    if (matcher.end() == text.length() && lastRow < emulator.mRows - 1) break;
+                    urlSet.add(text.substring(matcher.start(1), matcher.end()));
+                }
+            }
+        }
 
         if (urlSet.isEmpty()) {
             Toast.makeText(this, R.string.toast_no_urls_found, Toast.LENGTH_SHORT).show();
@@ -605,7 +745,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     }
 
     @SuppressWarnings("StringBufferReplaceableByString")
-    private static LinkedHashSet<CharSequence> extractUrls(String text) {
+    private static Pattern getUrlPattern() {
         StringBuilder regex_sb = new StringBuilder();
 
         regex_sb.append("(");
@@ -629,21 +769,9 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         regex_sb.append("(?:#[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
         regex_sb.append(")");
 
-        final Pattern urlPattern = Pattern.compile(
+        return Pattern.compile(
             regex_sb.toString(),
             Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
-
-        LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>();
-        Matcher matcher = urlPattern.matcher(text);
-
-        while (matcher.find()) {
-            int matchStart = matcher.start(1);
-            int matchEnd = matcher.end();
-            String url = text.substring(matchStart, matchEnd);
-            urlSet.add(url);
-        }
-
-        return urlSet;
     }
 
     public void changeFontSize(boolean increase) {
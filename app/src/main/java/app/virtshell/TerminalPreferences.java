@@ -29,6 +29,9 @@ public class TerminalPreferences {
     private static final String PREF_FIRST_RUN = "first_run";
     private static final String PREF_SHOW_EXTRA_KEYS = "show_extra_keys";
     private static final String PREF_IGNORE_BELL = "ignore_bell";
+    private static final String PREF_BACKGROUND_EMULATION = "background_emulation";
+    private static final String PREF_DISK_HISTORY = "disk_history";
+    private static final String PREF_SKIP_FRAMES_DURING_FLOODS = "skip_frames_during_floods";
     private static final String PREF_DATA_VERSION = "data_version";
     private static final String PREF_DEFAULT_SSH_USER = "default_ssh_user";
     
@@ -42,6 +45,9 @@ public class TerminalPreferences {
     private boolean mFirstRun;
     private boolean mShowExtraKeys;
     private boolean mIgnoreBellCharacter;
+    private boolean mBackgroundEmulation;
+    private boolean mDiskHistory;
+    private boolean mSkipFramesDuringFloods;
     private int mDataVersion;
     private String mDefaultSshUser;
     
@@ -57,6 +63,9 @@ public class TerminalPreferences {
         mFirstRun = prefs.getBoolean(PREF_FIRST_RUN, true);
         mShowExtraKeys = prefs.getBoolean(PREF_SHOW_EXTRA_KEYS, true);
         mIgnoreBellCharacter = prefs.getBoolean(PREF_IGNORE_BELL, false);
+        mBackgroundEmulation = prefs.getBoolean(PREF_BACKGROUND_EMULATION, false);
+        mDiskHistory = prefs.getBoolean(PREF_DISK_HISTORY, false);
+        mSkipFramesDuringFloods = prefs.getBoolean(PREF_SKIP_FRAMES_DURING_FLOODS, false);
         mDataVersion = prefs.getInt(PREF_DATA_VERSION, 0);
         mDefaultSshUser = prefs.getString(PREF_DEFAULT_SSH_USER, "root");
         
@@ -99,6 +108,42 @@ public class TerminalPreferences {
             .putBoolean(PREF_IGNORE_BELL, newValue).apply();
     }
 
+    /** If terminal emulation should run on a separate thread. Takes effect for sessions created afterwards. */
+    public boolean isBackgroundEmulationEnabled() {
+        return mBackgroundEmulation;
+    }
+
+    public void setBackgroundEmulation(Context context, boolean newValue) {
+        mBackgroundEmulation = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putBoolean(PREF_BACKGROUND_EMULATION, newValue).apply();
+    }
+
+    /**
+     * If the history which does not fit in memory should be spilled to a file in the cache directory instead of being
+     * discarded. Takes effect for sessions created afterwards.
+     */
+    public boolean isDiskHistoryEnabled() {
+        return mDiskHistory;
+    }
+
+    public void setDiskHistory(Context context, boolean newValue) {
+        mDiskHistory = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putBoolean(PREF_DISK_HISTORY, newValue).apply();
+    }
+
+    /** If the terminal view should skip drawing frames while output floods in. */
+    public boolean isSkipFramesDuringFloodsEnabled() {
+        return mSkipFramesDuringFloods;
+    }
+
+    public void setSkipFramesDuringFloods(Context context, boolean newValue) {
+        mSkipFramesDuringFloods = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putBoolean(PREF_SKIP_FRAMES_DURING_FLOODS, newValue).apply();
+    }
+
     public void updateDataVersion(Context context) {
         mDataVersion = BuildConfig.VERSION_CODE;
         PreferenceManager.getDefaultSharedPreferences(context).edit()
@@ -22,54 +22,113 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package app.virtshell.emulator;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ * <p>
+ * The queue is lock-free: the producer only ever advances the write position and the consumer only ever advances the
+ * read position, so the two threads never contend on a monitor. A thread is parked only if the queue is truly empty
+ * (reader) or full (writer), and is unparked by the other side as soon as it has made progress or the queue is closed.
+ */
 final class ByteQueue {
 
+    /**
+     * Distance in longs between the positions in {@link #mPositions}. 16 longs are 128 bytes, which keeps the read and
+     * write positions on separate cache lines even with adjacent line prefetching. An array is used instead of padding
+     * fields since the runtime is free to reorder fields of a class.
+     */
+    private static final int PADDING = 16;
+    /** Index in {@link #mPositions} of the total number of bytes ever read. Only advanced by the consumer. */
+    private static final int HEAD = PADDING;
+    /** Index in {@link #mPositions} of the total number of bytes ever written. Only advanced by the producer. */
+    private static final int TAIL = 2 * PADDING;
+
     private final byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
-    private boolean mOpen = true;
+    /** A view of {@link #mBuffer} handed out by {@link #read(Consumer, int)}. Only used by the consumer. */
+    private final ByteBuffer mReadView;
+    private final AtomicLongArray mPositions = new AtomicLongArray(3 * PADDING);
+    private volatile boolean mOpen = true;
+
+    /** The consumer thread if it is parked (or about to park) waiting for data. */
+    private volatile Thread mWaitingReader;
+    /** The producer thread if it is parked (or about to park) waiting for free space. */
+    private volatile Thread mWaitingWriter;
 
     public ByteQueue(int size) {
         mBuffer = new byte[size];
+        mReadView = ByteBuffer.wrap(mBuffer);
     }
 
-    public synchronized void close() {
+    public void close() {
         mOpen = false;
-        notify();
+        unpark(mWaitingReader);
+        unpark(mWaitingWriter);
     }
 
-    public synchronized int read(byte[] buffer, boolean block) {
-        while (mStoredBytes == 0 && mOpen) {
-            if (block) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // Ignore.
-                }
-            } else {
-                return 0;
-            }
+    /** The number of bytes currently in the queue. */
+    public int available() {
+        final long head = mPositions.get(HEAD);
+        return (int) (mPositions.get(TAIL) - head);
+    }
+
+    public int read(byte[] buffer, boolean block) {
+        final long head = mPositions.get(HEAD);
+        long tail = mPositions.get(TAIL);
+        while (tail == head && mOpen) {
+            if (!block) return 0;
+            mWaitingReader = Thread.currentThread();
+            // Re-check after announcing ourselves so that a concurrent write() either sees the waiting thread or has
+            // already published data we see here:
+            tail = mPositions.get(TAIL);
+            if (tail == head && mOpen) parkUninterruptibly();
+            mWaitingReader = null;
+            tail = mPositions.get(TAIL);
         }
         if (!mOpen) return -1;
 
-        int totalRead = 0;
-        int bufferLength = mBuffer.length;
-        boolean wasFull = bufferLength == mStoredBytes;
-        int length = buffer.length;
-        int offset = 0;
-        while (length > 0 && mStoredBytes > 0) {
-            int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-            int bytesToCopy = Math.min(length, oneRun);
-            System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-            mHead += bytesToCopy;
-            if (mHead >= bufferLength) mHead = 0;
-            mStoredBytes -= bytesToCopy;
-            length -= bytesToCopy;
-            offset += bytesToCopy;
-            totalRead += bytesToCopy;
+        final int bufferLength = mBuffer.length;
+        final int totalRead = (int) Math.min(tail - head, buffer.length);
+        // Copy out in at most two runs - up to the end of the buffer and from the start after wrapping around:
+        final int start = (int) (head % bufferLength);
+        final int firstRun = Math.min(totalRead, bufferLength - start);
+        System.arraycopy(mBuffer, start, buffer, 0, firstRun);
+        if (firstRun < totalRead) System.arraycopy(mBuffer, 0, buffer, firstRun, totalRead - firstRun);
+
+        mPositions.set(HEAD, head + totalRead);
+        unpark(mWaitingWriter);
+        return totalRead;
+    }
+
+    /**
+     * Non-blocking read which lets the consumer process up to maxBytes of queued bytes in place instead of copying
+     * them out. The consumer is called once for each contiguous run of bytes in the circular buffer, so at most twice,
+     * with a buffer positioned at the run. The buffer is only valid during the call and must not be modified.
+     *
+     * @return the number of bytes read, 0 if the queue was empty or -1 if it has been closed.
+     */
+    public int read(Consumer<ByteBuffer> consumer, int maxBytes) {
+        final long head = mPositions.get(HEAD);
+        final long tail = mPositions.get(TAIL);
+        if (!mOpen) return -1;
+        if (tail == head) return 0;
+
+        final int bufferLength = mBuffer.length;
+        final int totalRead = (int) Math.min(tail - head, maxBytes);
+        final int start = (int) (head % bufferLength);
+        final int firstRun = Math.min(totalRead, bufferLength - start);
+        mReadView.limit(start + firstRun).position(start);
+        consumer.accept(mReadView);
+        if (firstRun < totalRead) {
+            mReadView.limit(totalRead - firstRun).position(0);
+            consumer.accept(mReadView);
         }
-        if (wasFull) notify();
+
+        mPositions.set(HEAD, head + totalRead);
+        unpark(mWaitingWriter);
         return totalRead;
     }
 
@@ -86,45 +145,45 @@ final class ByteQueue {
         }
 
         final int bufferLength = mBuffer.length;
+        final long tail = mPositions.get(TAIL);
+        long written = 0;
 
-        synchronized (this) {
-            while (lengthToWrite > 0) {
-                while (bufferLength == mStoredBytes && mOpen) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore.
-                    }
-                }
-                if (!mOpen) return false;
-                final boolean wasEmpty = mStoredBytes == 0;
-                int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
-                lengthToWrite -= bytesToWriteBeforeWaiting;
-
-                while (bytesToWriteBeforeWaiting > 0) {
-                    int tail = mHead + mStoredBytes;
-                    int oneRun;
-                    if (tail >= bufferLength) {
-                        // Buffer: [.............]
-                        // ________________H_______T
-                        // =>
-                        // Buffer: [.............]
-                        // ___________T____H
-                        // onRun= _____----_
-                        tail = tail - bufferLength;
-                        oneRun = mHead - tail;
-                    } else {
-                        oneRun = bufferLength - tail;
-                    }
-                    int bytesToCopy = Math.min(oneRun, bytesToWriteBeforeWaiting);
-                    System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-                    offset += bytesToCopy;
-                    bytesToWriteBeforeWaiting -= bytesToCopy;
-                    mStoredBytes += bytesToCopy;
-                }
-                if (wasEmpty) notify();
+        while (lengthToWrite > 0) {
+            long head = mPositions.get(HEAD);
+            while (tail + written - head == bufferLength && mOpen) {
+                mWaitingWriter = Thread.currentThread();
+                head = mPositions.get(HEAD);
+                if (tail + written - head == bufferLength && mOpen) parkUninterruptibly();
+                mWaitingWriter = null;
+                head = mPositions.get(HEAD);
             }
+            if (!mOpen) return false;
+
+            final long position = tail + written;
+            final int bytesToWriteBeforeWaiting = (int) Math.min(lengthToWrite, bufferLength - (position - head));
+            final int start = (int) (position % bufferLength);
+            final int firstRun = Math.min(bytesToWriteBeforeWaiting, bufferLength - start);
+            System.arraycopy(buffer, offset, mBuffer, start, firstRun);
+            if (firstRun < bytesToWriteBeforeWaiting)
+                System.arraycopy(buffer, offset + firstRun, mBuffer, 0, bytesToWriteBeforeWaiting - firstRun);
+            offset += bytesToWriteBeforeWaiting;
+            lengthToWrite -= bytesToWriteBeforeWaiting;
+            written += bytesToWriteBeforeWaiting;
+
+            mPositions.set(TAIL, position + bytesToWriteBeforeWaiting);
+            unpark(mWaitingReader);
         }
         return true;
     }
+
+    private void parkUninterruptibly() {
+        LockSupport.park(this);
+        // Like the previous monitor based implementation, ignore interrupts. Clear the flag so that the next park()
+        // does not return immediately.
+        Thread.interrupted();
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) LockSupport.unpark(thread);
+    }
 }
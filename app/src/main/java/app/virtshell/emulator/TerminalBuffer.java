@@ -28,19 +28,41 @@ import java.util.Arrays;
  * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
  * history.
  * <p>
- * See {@link #externalToInternalRow(int)} for how to map from logical screen rows to array indices.
+ * See {@link #externalToInternalRow(int)} for how to map from logical screen rows to array indices. With a
+ * {@link TerminalScrollbackFile}, the rows dropping out of the history are spilled there and come before the rows of
+ * the buffer, see {@link #getRow(int)}.
  */
 public final class TerminalBuffer {
 
+    /** The most rows of the transcript kept thawed after being read, enough for drawing a screen of them. */
+    private static final int MAX_THAWED_ROWS = 256;
+
     TerminalRow[] mLines;
     /** The length of {@link #mLines}. */
     int mTotalRows;
     /** The number of rows and columns visible on the screen. */
     int mScreenRows, mColumns;
-    /** The number of rows kept in history. */
+    /** The number of rows kept in history in this buffer, not counting the rows in {@link #mScrollback}. */
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /** Holds rows while they are moved around by {@link #rotateLines(int, int, int)}, empty in between. */
+    private TerminalRow[] mScratchLines = new TerminalRow[0];
+    /** The style storage shared by the rows of this buffer. */
+    private final TerminalStylePalette mStylePalette = new TerminalStylePalette();
+    /** Where the text of the frozen rows of this buffer is stored. */
+    private final TerminalTextArena mTextArena = new TerminalTextArena();
+    /**
+     * The internal rows of the transcript which were thawed most recently, as a ring of {@link #MAX_THAWED_ROWS} rows.
+     * Rows are frozen again when they drop out of it, so reading through the transcript does not thaw all of it.
+     */
+    private final int[] mThawedRows = new int[MAX_THAWED_ROWS];
+    private int mNextThawedRow;
+    /** The text arrays of the rows frozen by the latest scroll, for the rows it clears. See {@link #clearLines}. */
+    private char[][] mSpareText = new char[0][];
+    private int mSpareTextCount;
+    /** Where the oldest rows of the history are spilled instead of being discarded, or null to discard them. */
+    private TerminalScrollbackFile mScrollback;
 
     /**
      * Create a transcript screen.
@@ -55,10 +77,24 @@ public final class TerminalBuffer {
         mTotalRows = totalRows;
         mScreenRows = screenRows;
         mLines = new TerminalRow[totalRows];
+        Arrays.fill(mThawedRows, -1);
 
         blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
     }
 
+    /** Spill the rows dropping out of the history to the given file from now on, instead of discarding them. */
+    void setScrollbackFile(TerminalScrollbackFile scrollback) {
+        mScrollback = scrollback;
+    }
+
+    /**
+     * An estimate of the heap used by a row of the transcript, for sizing the transcript by a memory budget. It is what a
+     * frozen row of Latin-1 text in a single style filling all columns takes. Rows in several styles take some more.
+     */
+    public static int estimateTranscriptRowSize(int columns) {
+        return 64 + columns;
+    }
+
     public String getTranscriptText() {
         return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows).trim();
     }
@@ -91,7 +127,7 @@ public final class TerminalBuffer {
             } else {
                 x2 = columns;
             }
-            TerminalRow lineObject = mLines[externalToInternalRow(row)];
+            TerminalRow lineObject = getRow(row);
             int x1Index = lineObject.findStartOfColumn(x1);
             int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
             if (x2Index == x1Index) {
@@ -101,7 +137,7 @@ public final class TerminalBuffer {
             char[] line = lineObject.mText;
             int lastPrintingCharIndex = -1;
             int i;
-            boolean rowLineWrap = getLineWrap(row);
+            boolean rowLineWrap = lineObject.mLineWrap;
             if (rowLineWrap && x2 == columns) {
                 // If the line was wrapped, we shouldn't lose trailing space:
                 lastPrintingCharIndex = x2Index - 1;
@@ -120,12 +156,22 @@ public final class TerminalBuffer {
         return builder.toString();
     }
 
+    /** The number of rows in history, including the rows spilled to the scrollback file. */
     public int getActiveTranscriptRows() {
+        return mActiveTranscriptRows + getSpilledRows();
+    }
+
+    /** The number of rows in history which are held in memory, that is without the spilled rows. */
+    public int getInMemoryTranscriptRows() {
         return mActiveTranscriptRows;
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    private int getSpilledRows() {
+        return (mScrollback == null) ? 0 : mScrollback.getRowCount();
     }
 
     /**
@@ -177,7 +223,9 @@ public final class TerminalBuffer {
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
-        // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
+        // The rows may move to other internal positions, so forget where the thawed rows were:
+        Arrays.fill(mThawedRows, -1);
+        // newRows > mTotalRows only happens when a small transcript has to grow to hold the screen:
         if (newColumns == mColumns && newRows <= mTotalRows) {
             // Fast resize where just the rows changed.
             int shiftDownOfTopRow = mScreenRows - newRows;
@@ -210,8 +258,6 @@ public final class TerminalBuffer {
             // Copy away old state and update new:
             TerminalRow[] oldLines = mLines;
             mLines = new TerminalRow[newTotalRows];
-            for (int i = 0; i < newTotalRows; i++)
-                mLines[i] = new TerminalRow(newColumns, currentStyle);
 
             final int oldActiveTranscriptRows = mActiveTranscriptRows;
             final int oldScreenFirstRow = mScreenFirstRow;
@@ -221,6 +267,9 @@ public final class TerminalBuffer {
             mScreenRows = newRows;
             mActiveTranscriptRows = mScreenFirstRow = 0;
             mColumns = newColumns;
+            // Only the screen is allocated up front. The rest of the rows are allocated as they scroll into the
+            // transcript, so a transcript which is not full does not take the memory of a full one:
+            clearLines(0, mScreenRows, currentStyle);
 
             int newCursorRow = -1;
             int newCursorColumn = -1;
@@ -250,7 +299,7 @@ public final class TerminalBuffer {
                     // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
                     for (int i = 0; i < skippedBlankLines; i++) {
                         if (currentOutputExternalRow == mScreenRows - 1) {
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
+                            scrollDown(0, mScreenRows, 1, currentStyle);
                         } else {
                             currentOutputExternalRow++;
                         }
@@ -259,6 +308,7 @@ public final class TerminalBuffer {
                     skippedBlankLines = 0;
                 }
 
+                oldLine.thaw();
                 int lastNonSpaceIndex = 0;
                 boolean justToCursor = false;
                 if (cursorAtThisRow || oldLine.mLineWrap) {
@@ -267,8 +317,8 @@ public final class TerminalBuffer {
                     if (cursorAtThisRow) justToCursor = true;
                 } else {
                     for (int i = 0; i < oldLine.getSpaceUsed(); i++)
-                        // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
-                        if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
+                        // NEWLY INTRODUCED BUG! Should not compare the style of char indices
+                        if (oldLine.mText[i] != ' '/* || oldLine.getStyle(i) != currentStyle */)
                             lastNonSpaceIndex = i + 1;
                 }
 
@@ -287,7 +337,7 @@ public final class TerminalBuffer {
                         setLineWrap(currentOutputExternalRow);
                         if (currentOutputExternalRow == mScreenRows - 1) {
                             if (newCursorPlaced) newCursorRow--;
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
+                            scrollDown(0, mScreenRows, 1, currentStyle);
                         } else {
                             currentOutputExternalRow++;
                         }
@@ -313,7 +363,7 @@ public final class TerminalBuffer {
                 if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
                     if (currentOutputExternalRow == mScreenRows - 1) {
                         if (newCursorPlaced) newCursorRow--;
-                        scrollDownOneLine(0, mScreenRows, currentStyle);
+                        scrollDown(0, mScreenRows, 1, currentStyle);
                     } else {
                         currentOutputExternalRow++;
                     }
@@ -330,57 +380,143 @@ public final class TerminalBuffer {
     }
 
     /**
-     * Block copy lines and associated metadata from one location to another in the circular buffer, taking wraparound
-     * into account.
+     * Rotate the rows at the given range of positions in the circular buffer, taking wraparound into account. Rows are
+     * moved by reference, so this is linear in the number of rows no matter how far they move.
      *
-     * @param srcInternal The first line to be copied.
-     * @param len         The number of lines to be copied.
+     * @param startInternal The first position in the circular buffer.
+     * @param length        The number of positions.
+     * @param distance      How many positions to move the rows towards the end of the range. The rows moved past its
+     *                      end end up at its start.
      */
-    private void blockCopyLinesDown(int srcInternal, int len) {
-        if (len == 0) return;
-        int totalRows = mTotalRows;
+    private void rotateLines(int startInternal, int length, int distance) {
+        if (length == 0 || distance % length == 0) return;
+        final int totalRows = mTotalRows;
+        if (mScratchLines.length < length) mScratchLines = new TerminalRow[Math.max(length, mScreenRows)];
+        final TerminalRow[] scratch = mScratchLines;
+        for (int i = 0; i < length; i++)
+            scratch[i] = mLines[(startInternal + i) % totalRows];
+        for (int i = 0; i < length; i++)
+            mLines[(startInternal + (i + distance) % length) % totalRows] = scratch[i];
+        // Do not keep rows alive from the scratch array:
+        Arrays.fill(scratch, 0, length, null);
+    }
 
-        int start = len - 1;
-        // Save away line to be overwritten:
-        TerminalRow lineToBeOverWritten = mLines[(srcInternal + start + 1) % totalRows];
-        // Do the copy from bottom to top.
-        for (int i = start; i >= 0; --i)
-            mLines[(srcInternal + i + 1) % totalRows] = mLines[(srcInternal + i) % totalRows];
-        // Put back overwritten line, now above the block:
-        mLines[(srcInternal) % totalRows] = lineToBeOverWritten;
+    /**
+     * Blank the rows from externalStartRow (inclusive) to externalEndRow (exclusive), allocating any missing ones. Frozen
+     * rows, like the oldest rows of a full transcript reused for new lines, take over the text arrays of the rows frozen
+     * just before.
+     */
+    private void clearLines(int externalStartRow, int externalEndRow, long style) {
+        for (int row = externalStartRow; row < externalEndRow; row++) {
+            final int internalRow = externalToInternalRow(row);
+            final TerminalRow line = mLines[internalRow];
+            if (line == null) {
+                mLines[internalRow] = new TerminalRow(mColumns, style, mStylePalette);
+            } else {
+                char[] spareText = null;
+                if (line.isFrozen() && mSpareTextCount > 0) {
+                    spareText = mSpareText[--mSpareTextCount];
+                    mSpareText[mSpareTextCount] = null;
+                }
+                line.clear(style, spareText);
+                line.mLineWrap = false;
+            }
+        }
+        // Do not keep arrays alive which were not needed:
+        while (mSpareTextCount > 0)
+            mSpareText[--mSpareTextCount] = null;
+    }
+
+    private void checkMargins(int topMargin, int bottomMargin, int lines) {
+        if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows || lines < 0)
+            throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", lines=" + lines + ", mScreenRows=" + mScreenRows);
     }
 
     /**
-     * Scroll the screen down one line. To scroll the whole screen of a 24 line screen, the arguments would be (0, 24).
+     * Scroll the contents between the margins up, as when a linefeed is output at the bottom margin. The lines scrolled
+     * out at the top margin go into the transcript, and blank lines are exposed above the bottom margin. To scroll the
+     * whole screen of a 24 line screen, the margin arguments would be (0, 24).
+     * <p>
+     * The whole operation moves each row at most once per screen height scrolled, instead of once per line. Scrolling
+     * more lines than the region and the transcript hold together is the same as scrolling that many.
      *
      * @param topMargin    First line that is scrolled.
      * @param bottomMargin One line after the last line that is scrolled.
-     * @param style        the style for the newly exposed line.
+     * @param lines        The number of lines to scroll.
+     * @param style        the style for the newly exposed lines.
      */
-    public void scrollDownOneLine(int topMargin, int bottomMargin, long style) {
-        if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
-            throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
-
-        // Copy the fixed topMargin lines one line down so that they remain on screen in same position:
-        blockCopyLinesDown(mScreenFirstRow, topMargin);
-        // Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
-        // position:
-        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin);
-
-        // Update the screen location in the ring buffer:
-        mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
-        // Note that the history has grown if not already full:
-        if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
-
-        // Blank the newly revealed line above the bottom margin:
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        if (mLines[blankRow] == null) {
-            mLines[blankRow] = new TerminalRow(mColumns, style);
-        } else {
-            mLines[blankRow].clear(style);
+    public void scrollDown(int topMargin, int bottomMargin, int lines, long style) {
+        checkMargins(topMargin, bottomMargin, lines);
+        final int regionRows = bottomMargin - topMargin;
+        // Beyond this only more blank lines would be pushed through the transcript, and with it the scrollback file:
+        lines = Math.min(lines, regionRows + mTotalRows);
+        while (lines > 0) {
+            // More lines than the region holds push blank lines into the transcript, a region full at a time:
+            final int n = Math.min(lines, regionRows);
+            if (mScrollback != null) {
+                // The oldest rows of the transcript are about to be reused for the exposed lines, so spill them first:
+                final int droppedRows = Math.min(mActiveTranscriptRows + n - (mTotalRows - mScreenRows), mActiveTranscriptRows);
+                for (int row = -mActiveTranscriptRows; row < droppedRows - mActiveTranscriptRows; row++) {
+                    final TerminalRow line = mLines[externalToInternalRow(row)];
+                    mScrollback.append((line == null) ? new TerminalRow(mColumns, style, mStylePalette) : line);
+                }
+            }
+            // Move the fixed lines above the top margin n lines down so that they remain on screen in the same position,
+            // leaving the n top lines of the region above the screen, where the transcript ends:
+            rotateLines(mScreenFirstRow, topMargin + n, n);
+            // Move the fixed lines below the bottom margin n lines down as well, taking the place of the n lines after
+            // the screen in the circular buffer. Those are reused for the lines exposed above the bottom margin:
+            rotateLines(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin + n, n);
+
+            // Update the screen location in the ring buffer:
+            mScreenFirstRow = (mScreenFirstRow + n) % mTotalRows;
+            // Note that the history has grown if not already full:
+            mActiveTranscriptRows = Math.min(mActiveTranscriptRows + n, mTotalRows - mScreenRows);
+            // The lines which went into the transcript are rarely touched again, so they are stored compactly:
+            final int frozenRows = Math.min(n, mActiveTranscriptRows);
+            if (mSpareText.length < frozenRows) mSpareText = new char[Math.max(frozenRows, mScreenRows)][];
+            for (int row = -frozenRows; row < 0; row++) {
+                final TerminalRow line = mLines[externalToInternalRow(row)];
+                if (line != null) mSpareText[mSpareTextCount++] = line.freeze(mTextArena);
+            }
+
+            clearLines(bottomMargin - n, bottomMargin, style);
+            lines -= n;
         }
     }
 
+    /**
+     * Scroll the contents between the margins down, as done by reverse index at the top margin or by inserting lines.
+     * Blank lines are exposed below the top margin, and the lines scrolled out at the bottom margin are discarded.
+     *
+     * @param topMargin    First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param lines        The number of lines to scroll, at most the number of lines between the margins.
+     * @param style        the style for the newly exposed lines.
+     */
+    public void scrollUp(int topMargin, int bottomMargin, int lines, long style) {
+        checkMargins(topMargin, bottomMargin, lines);
+        lines = Math.min(lines, bottomMargin - topMargin);
+        rotateLines(externalToInternalRow(topMargin), bottomMargin - topMargin, lines);
+        clearLines(topMargin, topMargin + lines, style);
+    }
+
+    /**
+     * Delete lines from the top margin, moving the lines below them up and exposing blank lines above the bottom margin.
+     * Unlike {@link #scrollDown(int, int, int, long)} nothing goes into the transcript.
+     *
+     * @param topMargin    The first line to delete.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param lines        The number of lines to delete, at most the number of lines between the margins.
+     * @param style        the style for the newly exposed lines.
+     */
+    public void deleteLines(int topMargin, int bottomMargin, int lines, long style) {
+        checkMargins(topMargin, bottomMargin, lines);
+        lines = Math.min(lines, bottomMargin - topMargin);
+        rotateLines(externalToInternalRow(topMargin), bottomMargin - topMargin, bottomMargin - topMargin - lines);
+        clearLines(bottomMargin - lines, bottomMargin, style);
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two positions can overlap. All characters
      * of the source and destination must be within the bounds of the screen, or else an InvalidParameterException will
@@ -416,12 +552,42 @@ public final class TerminalBuffer {
                 "illegal arguments: blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
         }
         for (int y = 0; y < h; y++)
-            for (int x = 0; x < w; x++)
-                setChar(sx + x, sy + y, val, style);
+            allocateFullLineIfNecessary(externalToInternalRow(sy + y)).fill(sx, sx + w, val, style);
+    }
+
+    /**
+     * Get the row at an external row, thawed. Rows older than the history in this buffer are read back from the
+     * scrollback file, and are read only.
+     */
+    public TerminalRow getRow(int externalRow) {
+        if (externalRow < -mActiveTranscriptRows && externalRow >= -getActiveTranscriptRows())
+            return mScrollback.getRow(getActiveTranscriptRows() + externalRow, mColumns);
+        return allocateFullLineIfNecessary(externalToInternalRow(externalRow));
     }
 
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0, mStylePalette)) : thawLine(row);
+    }
+
+    /**
+     * Get the row at an internal position, thawing it if it is frozen. Frozen rows are only found in the transcript, or
+     * on the screen after resizing brought rows of the transcript back onto it.
+     */
+    private TerminalRow thawLine(int internalRow) {
+        final TerminalRow line = mLines[internalRow];
+        if (line.isFrozen()) {
+            line.thaw();
+            final int droppedRow = mThawedRows[mNextThawedRow];
+            mThawedRows[mNextThawedRow] = internalRow;
+            mNextThawedRow = (mNextThawedRow + 1) % MAX_THAWED_ROWS;
+            // Only rows still in the transcript are frozen again, since rows on the screen may be in use:
+            if (droppedRow != -1 && droppedRow != internalRow && mLines[droppedRow] != null) {
+                final int externalRow = droppedRow - mScreenFirstRow;
+                final int transcriptRow = (externalRow < 0) ? externalRow : (externalRow - mTotalRows);
+                if (transcriptRow >= -mActiveTranscriptRows && transcriptRow < 0) mLines[droppedRow].freeze(mTextArena);
+            }
+        }
+        return line;
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
@@ -431,6 +597,13 @@ public final class TerminalBuffer {
         allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
     }
 
+    /** Set a run of printable ASCII characters, which all have width one, starting at the specified column. */
+    public void setPrintableAscii(int column, int row, byte[] text, int offset, int length, long style) {
+        if (row >= mScreenRows || column + length > mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", length=" + length + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        allocateFullLineIfNecessary(externalToInternalRow(row)).setPrintableAscii(column, text, offset, length, style);
+    }
+
     public long getStyleAt(int externalRow, int column) {
         return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
     }
@@ -442,8 +615,11 @@ public final class TerminalBuffer {
             TerminalRow line = mLines[externalToInternalRow(y)];
             int startOfLine = (rectangular || y == top) ? left : leftMargin;
             int endOfLine = (rectangular || y + 1 == bottom) ? right : rightMargin;
-            for (int x = startOfLine; x < endOfLine; x++) {
-                long currentStyle = line.getStyle(x);
+            // Change the style run by run, since all columns in a run end up with the same new style:
+            for (int x = startOfLine; x < endOfLine; ) {
+                int run = line.findStyleRun(x);
+                int endOfRun = Math.min(line.getStyleRunEnd(run), endOfLine);
+                long currentStyle = line.getStyleRunStyle(run);
                 int foreColor = TextStyle.decodeForeColor(currentStyle);
                 int backColor = TextStyle.decodeBackColor(currentStyle);
                 int effect = TextStyle.decodeEffect(currentStyle);
@@ -455,7 +631,8 @@ public final class TerminalBuffer {
                 } else {
                     effect &= ~bits;
                 }
-                line.mStyle[x] = TextStyle.encode(foreColor, backColor, effect);
+                line.setStyle(x, endOfRun, TextStyle.encode(foreColor, backColor, effect));
+                x = endOfRun;
             }
         }
     }
@@ -468,5 +645,6 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        if (mScrollback != null) mScrollback.clear();
     }
 }
@@ -25,6 +25,7 @@ package app.virtshell.emulator;
 import android.util.Base64;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
@@ -107,12 +108,173 @@ public final class TerminalEmulator {
     /** Escape processing: CSI ! */
     private static final int ESC_CSI_EXCLAMATION = 19;
 
+    /** The number of escape states, which are numbered from 0. */
+    private static final int ESC_STATE_COUNT = 20;
+
+    /*
+     * Code points are processed with transition and action tables indexed by escape state and code point class, in the
+     * manner of the DEC VT500 parser state diagram (https://vt100.net/emu/dec_ansi_parser). The tables print text,
+     * execute C0 controls, collect the parameters of control sequences and OSC strings, and move between the states of
+     * a sequence. Only the character which completes a sequence is dispatched to the handler of the escape state.
+     */
+
+    /** Code point class: everything without a class of its own, including all code points outside of ASCII. */
+    private static final int CLASS_PRINTABLE = 0;
+    /** Code point class: NUL, which is ignored everywhere. */
+    private static final int CLASS_NUL = 1;
+    /** Code point class: BS to SI, which take effect in any escape state. */
+    private static final int CLASS_EXECUTE = 2;
+    /** Code point class: BEL, which rings the bell or terminates an OSC string. */
+    private static final int CLASS_BEL = 3;
+    /** Code point class: CAN and SUB, which cancel escape sequences. */
+    private static final int CLASS_CANCEL = 4;
+    private static final int CLASS_ESCAPE = 5;
+    /** Code point class: other C0 controls, which are ignored as text but interrupt most escape sequences. */
+    private static final int CLASS_CONTROL = 6;
+    private static final int CLASS_DIGIT = 7;
+    /** Code point class: ';', the parameter separator. */
+    private static final int CLASS_SEPARATOR = 8;
+    /** Code point classes: the characters which lead from one escape state to another, see {@link #TRANSITIONS}. */
+    private static final int CLASS_SPACE = 9;
+    private static final int CLASS_EXCLAMATION = 10;
+    private static final int CLASS_DOUBLE_QUOTE = 11;
+    private static final int CLASS_SINGLE_QUOTE = 12;
+    private static final int CLASS_DOLLAR = 13;
+    private static final int CLASS_ASTERIX = 14;
+    private static final int CLASS_POUND = 15;
+    private static final int CLASS_LEFT_PAREN = 16;
+    private static final int CLASS_RIGHT_PAREN = 17;
+    private static final int CLASS_QUESTIONMARK = 18;
+    private static final int CLASS_BIGGERTHAN = 19;
+    private static final int CLASS_LEFT_BRACKET = 20;
+    private static final int CLASS_RIGHT_BRACKET = 21;
+    private static final int CLASS_P = 22;
+    private static final int CLASS_COUNT = 23;
+
+    /** Action: pass the code point to {@link #doEscapeSequenceChar(int)}, the handler of the escape state. */
+    private static final byte ACTION_DISPATCH = 0;
+    private static final byte ACTION_IGNORE = 1;
+    /** Action: emit the code point to the screen. */
+    private static final byte ACTION_PRINT = 2;
+    /** Action: handle the C0 control character with {@link #doControl(int)}. */
+    private static final byte ACTION_EXECUTE = 3;
+    /** Action: add a digit to the current parameter of a control sequence. */
+    private static final byte ACTION_PARAM_DIGIT = 4;
+    /** Action: start the next parameter of a control sequence. */
+    private static final byte ACTION_PARAM_SEPARATOR = 5;
+    /** Action: add the code point to the OSC string. */
+    private static final byte ACTION_OSC_PUT = 6;
+    /** Action: go to the escape state in {@link #TRANSITIONS}. */
+    private static final byte ACTION_TRANSITION = 7;
+    /** Action: count the sequence started by the character following ESC, and go to the state in {@link #TRANSITIONS}. */
+    private static final byte ACTION_ESC_TRANSITION = 8;
+    /** Action: like {@link #ACTION_ESC_TRANSITION}, for sequences which take a string argument. */
+    private static final byte ACTION_ESC_START_STRING = 9;
+    /** Action: start a new escape sequence, abandoning the current one. */
+    private static final byte ACTION_START_ESCAPE = 10;
+    /** Action: abandon the current escape sequence, emitting DEL in its place. */
+    private static final byte ACTION_CANCEL = 11;
+
+    /** The class of each ASCII code point. */
+    private static final byte[] CODE_POINT_CLASSES = new byte[128];
+    /** The action for each escape state and code point class, at index state * CLASS_COUNT + class. */
+    private static final byte[] ACTIONS = new byte[ESC_STATE_COUNT * CLASS_COUNT];
+    /** The next escape state for the transition actions, indexed like {@link #ACTIONS}. */
+    private static final byte[] TRANSITIONS = new byte[ESC_STATE_COUNT * CLASS_COUNT];
+
+    static {
+        Arrays.fill(CODE_POINT_CLASSES, 0, 32, (byte) CLASS_CONTROL);
+        CODE_POINT_CLASSES[0] = CLASS_NUL;
+        Arrays.fill(CODE_POINT_CLASSES, 8, 16, (byte) CLASS_EXECUTE);
+        CODE_POINT_CLASSES[7] = CLASS_BEL;
+        CODE_POINT_CLASSES[24] = CODE_POINT_CLASSES[26] = CLASS_CANCEL;
+        CODE_POINT_CLASSES[27] = CLASS_ESCAPE;
+        Arrays.fill(CODE_POINT_CLASSES, '0', '9' + 1, (byte) CLASS_DIGIT);
+        CODE_POINT_CLASSES[';'] = CLASS_SEPARATOR;
+        CODE_POINT_CLASSES[' '] = CLASS_SPACE;
+        CODE_POINT_CLASSES['!'] = CLASS_EXCLAMATION;
+        CODE_POINT_CLASSES['"'] = CLASS_DOUBLE_QUOTE;
+        CODE_POINT_CLASSES['\''] = CLASS_SINGLE_QUOTE;
+        CODE_POINT_CLASSES['$'] = CLASS_DOLLAR;
+        CODE_POINT_CLASSES['*'] = CLASS_ASTERIX;
+        CODE_POINT_CLASSES['#'] = CLASS_POUND;
+        CODE_POINT_CLASSES['('] = CLASS_LEFT_PAREN;
+        CODE_POINT_CLASSES[')'] = CLASS_RIGHT_PAREN;
+        CODE_POINT_CLASSES['?'] = CLASS_QUESTIONMARK;
+        CODE_POINT_CLASSES['>'] = CLASS_BIGGERTHAN;
+        CODE_POINT_CLASSES['['] = CLASS_LEFT_BRACKET;
+        CODE_POINT_CLASSES[']'] = CLASS_RIGHT_BRACKET;
+        CODE_POINT_CLASSES['P'] = CLASS_P;
+
+        // C0 controls, in any state unless overridden below:
+        for (int state = 0; state < ESC_STATE_COUNT; state++) {
+            setAction(state, CLASS_NUL, ACTION_IGNORE);
+            setAction(state, CLASS_EXECUTE, ACTION_EXECUTE);
+            setAction(state, CLASS_BEL, ACTION_EXECUTE);
+            setAction(state, CLASS_CANCEL, ACTION_CANCEL);
+            setAction(state, CLASS_ESCAPE, ACTION_START_ESCAPE);
+        }
+
+        for (int codePointClass = CLASS_CONTROL; codePointClass < CLASS_COUNT; codePointClass++)
+            setAction(ESC_NONE, codePointClass, codePointClass == CLASS_CONTROL ? ACTION_IGNORE : ACTION_PRINT);
+        setAction(ESC_NONE, CLASS_PRINTABLE, ACTION_PRINT);
+        setAction(ESC_NONE, CLASS_CANCEL, ACTION_IGNORE);
+
+        setTransition(ESC, CLASS_POUND, ACTION_ESC_TRANSITION, ESC_POUND);
+        setTransition(ESC, CLASS_LEFT_PAREN, ACTION_ESC_TRANSITION, ESC_SELECT_LEFT_PAREN);
+        setTransition(ESC, CLASS_RIGHT_PAREN, ACTION_ESC_TRANSITION, ESC_SELECT_RIGHT_PAREN);
+        setTransition(ESC, CLASS_LEFT_BRACKET, ACTION_ESC_TRANSITION, ESC_CSI);
+        setTransition(ESC, CLASS_RIGHT_BRACKET, ACTION_ESC_START_STRING, ESC_OSC);
+        setTransition(ESC, CLASS_P, ACTION_ESC_START_STRING, ESC_P);
+
+        for (int state : new int[]{ESC_CSI, ESC_CSI_QUESTIONMARK, ESC_CSI_BIGGERTHAN}) {
+            setAction(state, CLASS_DIGIT, ACTION_PARAM_DIGIT);
+            setAction(state, CLASS_SEPARATOR, ACTION_PARAM_SEPARATOR);
+        }
+        setTransition(ESC_CSI, CLASS_SPACE, ACTION_TRANSITION, ESC_CSI_ARGS_SPACE);
+        setTransition(ESC_CSI, CLASS_EXCLAMATION, ACTION_TRANSITION, ESC_CSI_EXCLAMATION);
+        setTransition(ESC_CSI, CLASS_DOUBLE_QUOTE, ACTION_TRANSITION, ESC_CSI_DOUBLE_QUOTE);
+        setTransition(ESC_CSI, CLASS_SINGLE_QUOTE, ACTION_TRANSITION, ESC_CSI_SINGLE_QUOTE);
+        setTransition(ESC_CSI, CLASS_DOLLAR, ACTION_TRANSITION, ESC_CSI_DOLLAR);
+        setTransition(ESC_CSI, CLASS_ASTERIX, ACTION_TRANSITION, ESC_CSI_ARGS_ASTERIX);
+        setTransition(ESC_CSI, CLASS_QUESTIONMARK, ACTION_TRANSITION, ESC_CSI_QUESTIONMARK);
+        setTransition(ESC_CSI, CLASS_BIGGERTHAN, ACTION_TRANSITION, ESC_CSI_BIGGERTHAN);
+        setTransition(ESC_CSI_QUESTIONMARK, CLASS_DOLLAR, ACTION_TRANSITION, ESC_CSI_QUESTIONMARK_ARG_DOLLAR);
+
+        // OSC strings take everything but the C0 controls which execute, and end with BEL or ESC \:
+        for (int codePointClass = CLASS_CONTROL; codePointClass < CLASS_COUNT; codePointClass++)
+            setAction(ESC_OSC, codePointClass, ACTION_OSC_PUT);
+        setAction(ESC_OSC, CLASS_PRINTABLE, ACTION_OSC_PUT);
+        setAction(ESC_OSC, CLASS_BEL, ACTION_DISPATCH);
+        setTransition(ESC_OSC, CLASS_ESCAPE, ACTION_TRANSITION, ESC_OSC_ESC);
+        // XXX: Ignore escape when reading device control sequence, since it may be part of string terminator.
+        setAction(ESC_P, CLASS_ESCAPE, ACTION_IGNORE);
+    }
+
+    private static void setAction(int state, int codePointClass, byte action) {
+        ACTIONS[state * CLASS_COUNT + codePointClass] = action;
+    }
+
+    private static void setTransition(int state, int codePointClass, byte action, int nextState) {
+        setAction(state, codePointClass, action);
+        TRANSITIONS[state * CLASS_COUNT + codePointClass] = (byte) nextState;
+    }
+
+    /** The smallest code point which is not an overlong encoding for each UTF-8 sequence length. */
+    private static final int[] UTF8_MIN_CODE_POINTS = {0, 0, 0x80, 0x800, 0x10000};
+
+    /** See {@link #isAssignedCodePoint(int)}. The blocks of 256 code points are filled in when first used. */
+    private static final AssignedCodePoints[] ASSIGNED_CODE_POINTS = new AssignedCodePoints[(Character.MAX_CODE_POINT + 1) >> 8];
+
     /** The number of parameter arguments. This name comes from the ANSI standard for terminal escape codes. */
     private static final int MAX_ESCAPE_PARAMETERS = 16;
 
     /** Needs to be large enough to contain reasonable OSC 52 pastes. */
     private static final int MAX_OSC_STRING_LENGTH = 8192;
 
+    /** Upper case hexadecimal digits, used when encoding responses. */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     /** DECSET 1 - application cursor keys. */
     private static final int DECSET_BIT_APPLICATION_CURSOR_KEYS = 1;
     private static final int DECSET_BIT_REVERSE_VIDEO = 1 << 1;
@@ -148,6 +310,14 @@ public final class TerminalEmulator {
     private static final int DECSET_BIT_LEFTRIGHT_MARGIN_MODE = 1 << 11;
     /** Not really DECSET bit... - http://www.vt100.net/docs/vt510-rm/DECSACE */
     private static final int DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE = 1 << 12;
+    /** DECSET 2026 - synchronized output, see {@link #getSynchronizedOutputRemainingNanos()}. */
+    private static final int DECSET_BIT_SYNCHRONIZED_OUTPUT = 1 << 13;
+
+    /**
+     * The longest time screen updates are held back by synchronized output, so that an application which never resets
+     * the mode (or is killed in the middle of an update) can not freeze the display.
+     */
+    static final long SYNCHRONIZED_OUTPUT_TIMEOUT_NANOS = 150_000_000L;
 
     private String mTitle;
     private final Stack<String> mTitleStack = new Stack<>();
@@ -180,7 +350,10 @@ public final class TerminalEmulator {
     /** Holds the arguments of the current escape sequence. */
     private final int[] mArgs = new int[MAX_ESCAPE_PARAMETERS];
 
-    /** Holds OSC and device control arguments, which can be strings. */
+    /**
+     * Holds OSC and device control arguments, which can be strings. The buffer is reused between sequences and parsed in
+     * place, so a String is only created when a value is actually needed, such as a changed title.
+     */
     private final StringBuilder mOSCOrDeviceControlArgs = new StringBuilder();
 
     /**
@@ -203,6 +376,9 @@ public final class TerminalEmulator {
      */
     private int mCurrentDecSetFlags, mSavedDecSetFlags;
 
+    /** The {@link System#nanoTime()} when {@link #DECSET_BIT_SYNCHRONIZED_OUTPUT} was last set. */
+    private long mSynchronizedOutputStartNanos;
+
     /**
      * If insert mode (as opposed to replace mode) is active. In insert mode new characters are inserted, pushing
      * existing text to the right. Characters moved past the right margin are lost.
@@ -237,14 +413,35 @@ public final class TerminalEmulator {
     /** Current {@link TextStyle} effect. */
     private int mEffect;
 
+    /**
+     * The {@link TextStyle} encoding of {@link #mForeColor}, {@link #mBackColor} and {@link #mEffect}, used for printed
+     * characters and erased cells. Must be kept up to date with {@link #updateStyle()} when any of them change.
+     */
+    private long mStyle;
+
     /**
      * The number of scrolled lines since last calling {@link #clearScrollCounter()}. Used for moving selection up along
      * with the scrolling text.
      */
     private int mScrollCounter = 0;
 
+    /** Totals for {@link TerminalMetrics}, which publishes them after each appended batch. */
+    long mCodePointsProcessed, mScrolledLines;
+    final long[] mEscapeSequenceCounts = new long[TerminalMetrics.ESCAPE_TYPES];
+
+    /** Records the processed escape sequences if not null, see {@link #setTrace(TerminalTrace)}. */
+    private TerminalTrace mTrace;
+    /** If the current escape sequence was not recognized, for {@link #mTrace}. */
+    private boolean mUnknownSequence;
+    /** The numeric parameter of an OSC sequence, for {@link #mTrace}. */
+    private final int[] mTraceOscArg = new int[1];
+
+    /** The state of a UTF-8 sequence continuing past the end of an appended input, see {@link #processByte(byte)}. */
     private byte mUtf8ToFollow, mUtf8Index;
-    private final byte[] mUtf8InputBuffer = new byte[4];
+    /** The bits of the code point decoded so far from the UTF-8 sequence. */
+    private int mUtf8CodePoint;
+    /** A view of the last appended input array, used for reading eight bytes at a time. */
+    private ByteBuffer mInputView;
     private int mLastEmittedCodePoint = -1;
 
     public final TerminalColors mColors = new TerminalColors();
@@ -295,6 +492,8 @@ public final class TerminalEmulator {
                 return DECSET_BIT_MOUSE_PROTOCOL_SGR;
             case 2004:
                 return DECSET_BIT_BRACKETED_PASTE_MODE;
+            case 2026:
+                return DECSET_BIT_SYNCHRONIZED_OUTPUT;
             default:
                 return -1;
             // throw new IllegalArgumentException("unsupported decset: " + decsetBit);
@@ -315,6 +514,11 @@ public final class TerminalEmulator {
         return mScreen;
     }
 
+    /** Spill the history of the main buffer which does not fit in its transcript to the file instead of discarding it. */
+    void setScrollbackFile(TerminalScrollbackFile scrollback) {
+        mMainBuffer.setScrollbackFile(scrollback);
+    }
+
     public boolean isAlternateBufferActive() {
         return mScreen == mAltBuffer;
     }
@@ -372,8 +576,9 @@ public final class TerminalEmulator {
 
     private void resizeScreen() {
         final int[] cursor = {mCursorCol, mCursorRow};
-        int newTotalRows = (mScreen == mAltBuffer) ? mRows : mMainBuffer.mTotalRows;
-        mScreen.resize(mColumns, mRows, newTotalRows, cursor, getStyle(), isAlternateBufferActive());
+        // A small transcript may have fewer rows than a screen which has grown:
+        int newTotalRows = (mScreen == mAltBuffer) ? mRows : Math.max(mMainBuffer.mTotalRows, mRows);
+        mScreen.resize(mColumns, mRows, newTotalRows, cursor, mStyle, isAlternateBufferActive());
         mCursorCol = cursor[0];
         mCursorRow = cursor[1];
     }
@@ -407,6 +612,17 @@ public final class TerminalEmulator {
         return isDecsetInternalBitSet(DECSET_BIT_APPLICATION_CURSOR_KEYS);
     }
 
+    /**
+     * If the application is in the middle of a synchronized update (DECSET 2026), the time in nanoseconds for which
+     * screen updates should still be held back so that no half drawn frame is shown. 0 if the screen should be updated,
+     * either since the mode is not set or since the update has taken longer than
+     * {@link #SYNCHRONIZED_OUTPUT_TIMEOUT_NANOS}.
+     */
+    public long getSynchronizedOutputRemainingNanos() {
+        if (!isDecsetInternalBitSet(DECSET_BIT_SYNCHRONIZED_OUTPUT)) return 0;
+        return Math.max(0, mSynchronizedOutputStartNanos + SYNCHRONIZED_OUTPUT_TIMEOUT_NANOS - System.nanoTime());
+    }
+
     /** If mouse events are being sent as escape codes to the terminal. */
     public boolean isMouseTrackingActive() {
         return isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_PRESS_RELEASE) || isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT);
@@ -424,42 +640,102 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        append(buffer, 0, length);
+    }
+
+    /**
+     * Accept the bytes between the position and limit of the buffer, advancing its position to the limit. Buffers with
+     * a backing array are decoded straight from it, without any intermediate copy.
+     */
+    public void append(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            append(array, buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+        } else {
+            for (int i = buffer.position(), limit = buffer.limit(); i < limit; i++)
+                processByte(buffer.get(i));
+        }
+        buffer.position(buffer.limit());
+    }
+
+    private void append(byte[] buffer, int start, int end) {
+        if (mInputView == null || mInputView.array() != buffer) mInputView = ByteBuffer.wrap(buffer);
+        int i = start;
+        while (i < end) {
+            final byte b = buffer[i];
+            if (mUtf8ToFollow > 0) {
+                // Finish a sequence started at the end of the previous input:
+                processByte(b);
+                i++;
+            } else if (b >= 0) {
+                final int written = (mEscapeState == ESC_NONE) ? emitPrintableAsciiRun(buffer, i, end) : 0;
+                if (written > 0) {
+                    i += written;
+                } else {
+                    processCodePoint(b);
+                    i++;
+                }
+            } else {
+                i = decodeUtf8Sequence(buffer, i, end);
+            }
+        }
+    }
+
+    /**
+     * Decode the UTF-8 sequence starting with the lead byte at the specified index straight from the input, and process
+     * the resulting code point. Sequences continuing past the end of the input are left to {@link #processByte(byte)}.
+     *
+     * @return the index of the next byte to process.
+     */
+    private int decodeUtf8Sequence(byte[] buffer, int index, int end) {
+        final int lead = buffer[index];
+        final int length = utf8SequenceLength(lead);
+        if (length == 0) {
+            // Not a valid UTF-8 sequence start, signal invalid data:
+            processCodePoint(UNICODE_REPLACEMENT_CHAR);
+            return index + 1;
+        } else if (index + length > end) {
+            processByte((byte) lead);
+            return index + 1;
+        }
+
+        int codePoint = lead & (0b1111111 >> length);
+        for (int i = index + 1; i < index + length; i++) {
+            final byte continuation = buffer[i];
+            if ((continuation & 0b11000000) != 0b10000000) {
+                // Replace the sequence up to now, but leave the byte which is not a continuation byte to be processed on
+                // its own, see processByte().
+                emitCodePoint(UNICODE_REPLACEMENT_CHAR);
+                return i;
+            }
+            codePoint = (codePoint << 6) | (continuation & 0b00111111);
+        }
+        processDecodedCodePoint(codePoint, length);
+        return index + length;
+    }
+
+    /** The length of the UTF-8 sequence started by a non-ASCII byte, or 0 if it is not a valid first byte. */
+    private static int utf8SequenceLength(int lead) {
+        if ((lead & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
+            return 2;
+        } else if ((lead & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
+            return 3;
+        } else if ((lead & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
+            return 4;
+        }
+        return 0;
     }
 
     private void processByte(byte byteToProcess) {
         if (mUtf8ToFollow > 0) {
             if ((byteToProcess & 0b11000000) == 0b10000000) {
                 // 10xxxxxx, a continuation byte.
-                mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
+                mUtf8CodePoint = (mUtf8CodePoint << 6) | (byteToProcess & 0b00111111);
+                mUtf8Index++;
                 if (--mUtf8ToFollow == 0) {
-                    byte firstByteMask = (byte) (mUtf8Index == 2 ? 0b00011111 : (mUtf8Index == 3 ? 0b00001111 : 0b00000111));
-                    int codePoint = (mUtf8InputBuffer[0] & firstByteMask);
-                    for (int i = 1; i < mUtf8Index; i++)
-                        codePoint = ((codePoint << 6) | (mUtf8InputBuffer[i] & 0b00111111));
-                    if (((codePoint <= 0b1111111) && mUtf8Index > 1) || (codePoint < 0b11111111111 && mUtf8Index > 2)
-                        || (codePoint < 0b1111111111111111 && mUtf8Index > 3)) {
-                        // Overlong encoding.
-                        codePoint = UNICODE_REPLACEMENT_CHAR;
-                    }
-
-                    mUtf8Index = mUtf8ToFollow = 0;
-
-                    if (codePoint >= 0x80 && codePoint <= 0x9F) {
-                        // Sequence decoded to a C1 control character which we ignore. They are
-                        // not used nowadays and increases the risk of messing up the terminal state
-                        // on binary input. XTerm does not allow them in utf-8:
-                        // "It is not possible to use a C1 control obtained from decoding the
-                        // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
-                    } else {
-                        switch (Character.getType(codePoint)) {
-                            case Character.UNASSIGNED:
-                            case Character.SURROGATE:
-                                codePoint = UNICODE_REPLACEMENT_CHAR;
-                        }
-                        processCodePoint(codePoint);
-                    }
+                    final int length = mUtf8Index;
+                    mUtf8Index = 0;
+                    processDecodedCodePoint(mUtf8CodePoint, length);
                 }
             } else {
                 // Not a UTF-8 continuation byte so replace the entire sequence up to now with the replacement char:
@@ -474,34 +750,148 @@ public final class TerminalEmulator {
                 // subsequence."
                 processByte(byteToProcess);
             }
+        } else if (byteToProcess >= 0) { // The leading bit is not set so it is a 7-bit ASCII character.
+            processCodePoint(byteToProcess);
         } else {
-            if ((byteToProcess & 0b10000000) == 0) { // The leading bit is not set so it is a 7-bit ASCII character.
-                processCodePoint(byteToProcess);
-                return;
-            } else if ((byteToProcess & 0b11100000) == 0b11000000) { // 110xxxxx, a two-byte sequence.
-                mUtf8ToFollow = 1;
-            } else if ((byteToProcess & 0b11110000) == 0b11100000) { // 1110xxxx, a three-byte sequence.
-                mUtf8ToFollow = 2;
-            } else if ((byteToProcess & 0b11111000) == 0b11110000) { // 11110xxx, a four-byte sequence.
-                mUtf8ToFollow = 3;
-            } else {
+            final int length = utf8SequenceLength(byteToProcess);
+            if (length == 0) {
                 // Not a valid UTF-8 sequence start, signal invalid data:
                 processCodePoint(UNICODE_REPLACEMENT_CHAR);
-                return;
+            } else {
+                mUtf8CodePoint = byteToProcess & (0b1111111 >> length);
+                mUtf8Index = 1;
+                mUtf8ToFollow = (byte) (length - 1);
+            }
+        }
+    }
+
+    /** Process a code point decoded from a UTF-8 sequence of the specified length, replacing it if it is invalid. */
+    private void processDecodedCodePoint(int codePoint, int length) {
+        if (codePoint < UTF8_MIN_CODE_POINTS[length]) {
+            // Overlong encoding.
+            codePoint = UNICODE_REPLACEMENT_CHAR;
+        } else if (codePoint >= 0x80 && codePoint <= 0x9F) {
+            // Sequence decoded to a C1 control character which we ignore. They are
+            // not used nowadays and increases the risk of messing up the terminal state
+            // on binary input. XTerm does not allow them in utf-8:
+            // "It is not possible to use a C1 control obtained from decoding the
+            // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
+            return;
+        } else if (!isAssignedCodePoint(codePoint)) {
+            codePoint = UNICODE_REPLACEMENT_CHAR;
+        }
+        processCodePoint(codePoint);
+    }
+
+    /**
+     * If the code point is assigned and not a surrogate, as told by {@link Character#getType(int)} but using the
+     * {@link #ASSIGNED_CODE_POINTS} bitmap, since looking up the type of each decoded code point is slow.
+     */
+    static boolean isAssignedCodePoint(int codePoint) {
+        if (codePoint > Character.MAX_CODE_POINT) return false;
+        final int blockIndex = codePoint >> 8;
+        AssignedCodePoints block = ASSIGNED_CODE_POINTS[blockIndex];
+        if (block == null) ASSIGNED_CODE_POINTS[blockIndex] = block = new AssignedCodePoints(blockIndex << 8);
+        return (block.mBits[(codePoint >> 6) & 3] & (1L << codePoint)) != 0;
+    }
+
+    /**
+     * A bitmap of the code points in a block of 256 which are assigned and not surrogates. Immutable, so that blocks
+     * can be shared between emulators on different threads without synchronization - a thread which does not yet see
+     * a block created by another thread just creates an identical one.
+     */
+    private static final class AssignedCodePoints {
+        final long[] mBits = new long[4];
+
+        AssignedCodePoints(int firstCodePoint) {
+            for (int i = 0; i < 256; i++) {
+                switch (Character.getType(firstCodePoint + i)) {
+                    case Character.UNASSIGNED:
+                    case Character.SURROGATE:
+                        break;
+                    default:
+                        mBits[i >> 6] |= 1L << i;
+                }
             }
-            mUtf8InputBuffer[mUtf8Index++] = byteToProcess;
         }
     }
 
     public void processCodePoint(int b) {
-        switch (b) {
-            case 0: // Null character (NUL, ^@). Do nothing.
+        mCodePointsProcessed++;
+        final int codePointClass = (b < CODE_POINT_CLASSES.length) ? CODE_POINT_CLASSES[b] : CLASS_PRINTABLE;
+        final int index = mEscapeState * CLASS_COUNT + codePointClass;
+        switch (ACTIONS[index]) {
+            case ACTION_IGNORE:
                 break;
-            case 7: // Bell (BEL, ^G, \a). If in an OSC sequence, BEL may terminate a string; otherwise signal bell.
-                if (mEscapeState == ESC_OSC)
-                    doOsc(b);
-                else
-                    mSession.onBell();
+            case ACTION_PRINT:
+                emitCodePoint(b);
+                break;
+            case ACTION_EXECUTE:
+                doControl(b);
+                break;
+            case ACTION_PARAM_DIGIT:
+                addArgDigit(b - '0');
+                break;
+            case ACTION_PARAM_SEPARATOR:
+                if (mArgIndex < mArgs.length) mArgIndex++;
+                break;
+            case ACTION_OSC_PUT:
+                putOscCodePoint(b);
+                break;
+            case ACTION_TRANSITION:
+                mEscapeState = TRANSITIONS[index];
+                break;
+            case ACTION_ESC_TRANSITION:
+                countEscapeSequence(b);
+                mEscapeState = TRANSITIONS[index];
+                break;
+            case ACTION_ESC_START_STRING:
+                countEscapeSequence(b);
+                mOSCOrDeviceControlArgs.setLength(0);
+                mEscapeState = TRANSITIONS[index];
+                break;
+            case ACTION_START_ESCAPE:
+                startEscapeSequence();
+                break;
+            case ACTION_CANCEL:
+                cancelEscapeSequence();
+                break;
+            default:
+                doEscapeSequenceChar(b);
+                break;
+        }
+    }
+
+    /** Add a digit to the current parameter of a control sequence. */
+    private void addArgDigit(int digit) {
+        if (mArgIndex < mArgs.length) {
+            final int oldValue = mArgs[mArgIndex];
+            mArgs[mArgIndex] = (oldValue >= 0 ? oldValue * 10 : 0) + digit;
+        }
+    }
+
+    /** Add a code point to the OSC string, or abandon the sequence if the string is too long. */
+    private void putOscCodePoint(int b) {
+        if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
+            mOSCOrDeviceControlArgs.appendCodePoint(b);
+        } else {
+            unknownSequence(b);
+            if (mTrace != null) traceSequence(ESC_OSC, b);
+        }
+    }
+
+    /** CAN or SUB in the middle of an escape sequence. */
+    private void cancelEscapeSequence() {
+        // FIXME: What is this??
+        mEscapeState = ESC_NONE;
+        emitCodePoint(127);
+    }
+
+    /** Process a C0 control character which takes effect in the middle of escape sequences as well. */
+    private void doControl(int b) {
+        switch (b) {
+            case 7: // Bell (BEL, ^G, \a). Terminates OSC strings instead, see ACTIONS.
+                mSession.onBell();
                 break;
             case 8: // Backspace (BS, ^H).
                 if (mLeftMargin == mCursorCol) {
@@ -539,293 +929,362 @@ public final class TerminalEmulator {
             case 15: // Shift In (Ctrl-O, SI) → Switch to Standard Character Set. This invokes the G0 character set.
                 mUseLineDrawingUsesG0 = true;
                 break;
-            case 24: // CAN.
-            case 26: // SUB.
-                if (mEscapeState != ESC_NONE) {
-                    // FIXME: What is this??
-                    mEscapeState = ESC_NONE;
-                    emitCodePoint(127);
-                }
+        }
+    }
+
+    /** Process a character which completes an escape sequence, or is not handled by {@link #ACTIONS} otherwise. */
+    private void doEscapeSequenceChar(int b) {
+        final int state = mEscapeState;
+        mContinueSequence = false;
+        switch (state) {
+            case ESC:
+                doEsc(b);
+                break;
+            case ESC_POUND:
+                doEscPound(b);
                 break;
-            case 27: // ESC
-                // Starts an escape sequence unless we're parsing a string
-                if (mEscapeState == ESC_P) {
-                    // XXX: Ignore escape when reading device control sequence, since it may be part of string terminator.
-                    return;
-                } else if (mEscapeState != ESC_OSC) {
-                    startEscapeSequence();
+            case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG0 = (b == '0');
+                break;
+            case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG1 = (b == '0');
+                break;
+            case ESC_CSI:
+                doCsi(b);
+                break;
+            case ESC_CSI_EXCLAMATION:
+                if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
+                    reset(false);
                 } else {
-                    doOsc(b);
+                    unknownSequence(b);
                 }
                 break;
-            default:
-                mContinueSequence = false;
-                switch (mEscapeState) {
-                    case ESC_NONE:
-                        if (b >= 32) emitCodePoint(b);
-                        break;
-                    case ESC:
-                        doEsc(b);
+            case ESC_CSI_QUESTIONMARK:
+                doCsiQuestionMark(b);
+                break;
+            case ESC_CSI_BIGGERTHAN:
+                doCsiBiggerThan(b);
+                break;
+            case ESC_CSI_DOLLAR:
+                boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
+                int effectiveTopMargin = originMode ? mTopMargin : 0;
+                int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
+                int effectiveLeftMargin = originMode ? mLeftMargin : 0;
+                int effectiveRightMargin = originMode ? mRightMargin : mColumns;
+                switch (b) {
+                    case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
+                        // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
+                        // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
+                        // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
+                        // DECCRA is not affected by the page margins.
+                        // The copied text takes on the line attributes of the destination area.
+                        // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
+                        // is treated as the width or height of that page.
+                        // If the destination area is partially off the page, then DECCRA clips the off-page data.
+                        // DECCRA does not change the active cursor position."
+                        int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
+                        int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                        // Inclusive, so do not subtract one:
+                        int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
+                        int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
+                        // int sourcePage = getArg(4, 1, true);
+                        int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
+                        int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                        // int destinationPage = getArg(7, 1, true);
+                        int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
+                        int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
+                        mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
                         break;
-                    case ESC_POUND:
-                        doEscPound(b);
-                        break;
-                    case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG0 = (b == '0');
-                        break;
-                    case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG1 = (b == '0');
-                        break;
-                    case ESC_CSI:
-                        doCsi(b);
-                        break;
-                    case ESC_CSI_EXCLAMATION:
-                        if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
-                            reset(false);
-                        } else {
-                            unknownSequence(b);
+                    case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
+                        // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
+                    case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
+                        // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
+                    case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
+                        // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
+                        boolean erase = b != 'x';
+                        boolean selective = b == '{';
+                        // Only DECSERA keeps visual attributes, DECERA does not:
+                        boolean keepVisualAttributes = erase && selective;
+                        int argIndex = 0;
+                        int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
+                        // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
+                        // terminal ignores the DECFRA command":
+                        if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
+                            // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
+                            // is treated as the width or height of that page."
+                            int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
+                            int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
+                            int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
+                            int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
+                            for (int row = top - 1; row < bottom; row++)
+                                for (int col = left - 1; col < right; col++)
+                                    if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
+                                        mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : mStyle);
                         }
                         break;
-                    case ESC_CSI_QUESTIONMARK:
-                        doCsiQuestionMark(b);
-                        break;
-                    case ESC_CSI_BIGGERTHAN:
-                        doCsiBiggerThan(b);
-                        break;
-                    case ESC_CSI_DOLLAR:
-                        boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
-                        int effectiveTopMargin = originMode ? mTopMargin : 0;
-                        int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
-                        int effectiveLeftMargin = originMode ? mLeftMargin : 0;
-                        int effectiveRightMargin = originMode ? mRightMargin : mColumns;
-                        switch (b) {
-                            case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
-                                // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
-                                // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
-                                // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
-                                // DECCRA is not affected by the page margins.
-                                // The copied text takes on the line attributes of the destination area.
-                                // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
-                                // is treated as the width or height of that page.
-                                // If the destination area is partially off the page, then DECCRA clips the off-page data.
-                                // DECCRA does not change the active cursor position."
-                                int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // Inclusive, so do not subtract one:
-                                int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
-                                int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
-                                // int sourcePage = getArg(4, 1, true);
-                                int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // int destinationPage = getArg(7, 1, true);
-                                int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
-                                int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
-                                mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
-                                break;
-                            case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
-                                // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
-                            case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
-                                // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
-                            case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
-                                // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
-                                boolean erase = b != 'x';
-                                boolean selective = b == '{';
-                                // Only DECSERA keeps visual attributes, DECERA does not:
-                                boolean keepVisualAttributes = erase && selective;
-                                int argIndex = 0;
-                                int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
-                                // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
-                                // terminal ignores the DECFRA command":
-                                if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
-                                    // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
-                                    // is treated as the width or height of that page."
-                                    int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
-                                    int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
-                                    int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
-                                    int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
-                                    long style = getStyle();
-                                    for (int row = top - 1; row < bottom; row++)
-                                        for (int col = left - 1; col < right; col++)
-                                            if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-                                                mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
+                    case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
+                        // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
+                    case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
+                        // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
+                        boolean reverse = b == 't';
+                        // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
+                        int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
+                        int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
+                        int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
+                        int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
+                        if (mArgIndex >= 4) {
+                            if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
+                            for (int i = 4; i <= mArgIndex; i++) {
+                                int bits = 0;
+                                boolean setOrClear = true; // True if setting, false if clearing.
+                                switch (getArg(i, 0, false)) {
+                                    case 0: // Attributes off (no bold, no underline, no blink, positive image).
+                                        bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
+                                            | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
+                                        if (!reverse) setOrClear = false;
+                                        break;
+                                    case 1: // Bold.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                        break;
+                                    case 4: // Underline.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                        break;
+                                    case 5: // Blink.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                        break;
+                                    case 7: // Negative image.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                        break;
+                                    case 22: // No bold.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                        setOrClear = false;
+                                        break;
+                                    case 24: // No underline.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                        setOrClear = false;
+                                        break;
+                                    case 25: // No blink.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                        setOrClear = false;
+                                        break;
+                                    case 27: // Positive image.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                        setOrClear = false;
+                                        break;
                                 }
-                                break;
-                            case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
-                                // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
-                            case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
-                                // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
-                                boolean reverse = b == 't';
-                                // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
-                                int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
-                                int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
-                                int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
-                                int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
-                                if (mArgIndex >= 4) {
-                                    if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
-                                    for (int i = 4; i <= mArgIndex; i++) {
-                                        int bits = 0;
-                                        boolean setOrClear = true; // True if setting, false if clearing.
-                                        switch (getArg(i, 0, false)) {
-                                            case 0: // Attributes off (no bold, no underline, no blink, positive image).
-                                                bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
-                                                    | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
-                                                if (!reverse) setOrClear = false;
-                                                break;
-                                            case 1: // Bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                break;
-                                            case 4: // Underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                break;
-                                            case 5: // Blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                break;
-                                            case 7: // Negative image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                break;
-                                            case 22: // No bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                setOrClear = false;
-                                                break;
-                                            case 24: // No underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                setOrClear = false;
-                                                break;
-                                            case 25: // No blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                setOrClear = false;
-                                                break;
-                                            case 27: // Positive image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                setOrClear = false;
-                                                break;
-                                        }
-                                        if (reverse && !setOrClear) {
-                                            // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
-                                        } else {
-                                            mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
-                                                effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
-                                        }
-                                    }
+                                if (reverse && !setOrClear) {
+                                    // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
                                 } else {
-                                    // Do nothing.
+                                    mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
+                                        effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
                                 }
-                                break;
-                            default:
-                                unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_DOUBLE_QUOTE:
-                        if (b == 'q') {
-                            // http://www.vt100.net/docs/vt510-rm/DECSCA
-                            int arg = getArg0(0);
-                            if (arg == 0 || arg == 2) {
-                                // DECSED and DECSEL can erase characters.
-                                mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-                            } else if (arg == 1) {
-                                // DECSED and DECSEL cannot erase characters.
-                                mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-                            } else {
-                                unknownSequence(b);
                             }
                         } else {
-                            unknownSequence(b);
+                            // Do nothing.
                         }
                         break;
-                    case ESC_CSI_SINGLE_QUOTE:
-                        if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToInsert;
-                            mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
-                            blockClear(mCursorCol, 0, columnsToInsert, mRows);
-                        } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToDelete;
-                            mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
-                            blockClear(mCursorRow + columnsToMove, 0, columnsToDelete, mRows);
+                    default:
+                        unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_DOUBLE_QUOTE:
+                if (b == 'q') {
+                    // http://www.vt100.net/docs/vt510-rm/DECSCA
+                    int arg = getArg0(0);
+                    if (arg == 0 || arg == 2) {
+                        // DECSED and DECSEL can erase characters.
+                        mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+                        updateStyle();
+                    } else if (arg == 1) {
+                        // DECSED and DECSEL cannot erase characters.
+                        mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+                        updateStyle();
+                    } else {
+                        unknownSequence(b);
+                    }
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_SINGLE_QUOTE:
+                if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
+                    int columnsAfterCursor = mRightMargin - mCursorCol;
+                    int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
+                    int columnsToMove = columnsAfterCursor - columnsToInsert;
+                    mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
+                    blockClear(mCursorCol, 0, columnsToInsert, mRows);
+                } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
+                    int columnsAfterCursor = mRightMargin - mCursorCol;
+                    int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
+                    int columnsToMove = columnsAfterCursor - columnsToDelete;
+                    mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
+                    blockClear(mCursorRow + columnsToMove, 0, columnsToDelete, mRows);
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_PERCENT:
+                break;
+            case ESC_OSC:
+                doOsc(b);
+                break;
+            case ESC_OSC_ESC:
+                doOscEsc(b);
+                break;
+            case ESC_P:
+                doDeviceControl(b);
+                break;
+            case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
+                if (b == 'p') {
+                    // Request DEC private mode (DECRQM).
+                    int mode = getArg0(0);
+                    int value;
+                    if (mode == 47 || mode == 1047 || mode == 1049) {
+                        // This state is carried by mScreen pointer.
+                        value = (mScreen == mAltBuffer) ? 1 : 2;
+                    } else {
+                        int internalBit = mapDecSetBitToInternalBit(mode);
+                        if (internalBit != -1) {
+                            value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
                         } else {
-                            unknownSequence(b);
+                            Log.e(EmulatorDebug.LOG_TAG, "got DECRQM for unrecognized private DEC mode=" + mode);
+                            value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
+                        }
+                    }
+                    mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_ARGS_SPACE:
+                int arg = getArg0(0);
+                switch (b) {
+                    case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
+                        switch (arg) {
+                            case 0: // Blinking block.
+                            case 1: // Blinking block.
+                            case 2: // Steady block.
+                                mCursorStyle = CURSOR_STYLE_BLOCK;
+                                break;
+                            case 3: // Blinking underline.
+                            case 4: // Steady underline.
+                                mCursorStyle = CURSOR_STYLE_UNDERLINE;
+                                break;
+                            case 5: // Blinking bar (xterm addition).
+                            case 6: // Steady bar (xterm addition).
+                                mCursorStyle = CURSOR_STYLE_BAR;
+                                break;
                         }
                         break;
-                    case ESC_PERCENT:
-                        break;
-                    case ESC_OSC:
-                        doOsc(b);
+                    case 't':
+                    case 'u':
+                        // Set margin-bell volume - ignore.
                         break;
-                    case ESC_OSC_ESC:
-                        doOscEsc(b);
+                    default:
+                        unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_ARGS_ASTERIX:
+                int attributeChangeExtent = getArg0(0);
+                if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
+                    // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
+                    setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            default:
+                unknownSequence(b);
+                break;
+        }
+        if (!mContinueSequence) {
+            if (mTrace != null) traceSequence(state, b);
+            mEscapeState = ESC_NONE;
+        }
+    }
+
+    /** Record the escape sequence finished by the given character in the given escape state in {@link #mTrace}. */
+    private void traceSequence(int state, int finalByte) {
+        int kind = TerminalMetrics.ESCAPE_ESC;
+        int prefix = 0;
+        int intermediate = 0;
+        int[] args = mArgs;
+        int argCount = 0;
+        switch (state) {
+            case ESC_NONE:
+                return;
+            case ESC_POUND:
+                intermediate = '#';
+                break;
+            case ESC_SELECT_LEFT_PAREN:
+                intermediate = '(';
+                break;
+            case ESC_SELECT_RIGHT_PAREN:
+                intermediate = ')';
+                break;
+            case ESC_PERCENT:
+                intermediate = '%';
+                break;
+            case ESC_OSC:
+            case ESC_OSC_ESC:
+                kind = TerminalMetrics.ESCAPE_OSC;
+                args = mTraceOscArg;
+                argCount = 1;
+                int value = -1;
+                for (int i = 0; i < mOSCOrDeviceControlArgs.length(); i++) {
+                    final char c = mOSCOrDeviceControlArgs.charAt(i);
+                    if (c < '0' || c > '9') break;
+                    value = (value < 0 ? 0 : value * 10) + (c - '0');
+                }
+                args[0] = value;
+                break;
+            case ESC_P:
+                kind = TerminalMetrics.ESCAPE_DCS;
+                // Show the introducer of the control string, like "$q" for DECRQSS:
+                final StringBuilder dcs = mOSCOrDeviceControlArgs;
+                if (dcs.length() >= 2 && dcs.charAt(0) >= 0x20 && dcs.charAt(0) <= 0x2F) {
+                    prefix = dcs.charAt(0);
+                    intermediate = dcs.charAt(1);
+                }
+                break;
+            case ESC:
+                break;
+            default:
+                kind = TerminalMetrics.ESCAPE_CSI;
+                argCount = Math.min(mArgIndex + 1, mArgs.length);
+                switch (state) {
+                    case ESC_CSI_QUESTIONMARK:
+                        prefix = '?';
                         break;
-                    case ESC_P:
-                        doDeviceControl(b);
+                    case ESC_CSI_BIGGERTHAN:
+                        prefix = '>';
                         break;
                     case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
-                        if (b == 'p') {
-                            // Request DEC private mode (DECRQM).
-                            int mode = getArg0(0);
-                            int value;
-                            if (mode == 47 || mode == 1047 || mode == 1049) {
-                                // This state is carried by mScreen pointer.
-                                value = (mScreen == mAltBuffer) ? 1 : 2;
-                            } else {
-                                int internalBit = mapDecSetBitToInternalBit(mode);
-                                if (internalBit != -1) {
-                                    value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
-                                } else {
-                                    Log.e(EmulatorDebug.LOG_TAG, "got DECRQM for unrecognized private DEC mode=" + mode);
-                                    value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
-                                }
-                            }
-                            mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
-                        } else {
-                            unknownSequence(b);
-                        }
+                        prefix = '?';
+                        intermediate = '$';
+                        break;
+                    case ESC_CSI_DOLLAR:
+                        intermediate = '$';
                         break;
                     case ESC_CSI_ARGS_SPACE:
-                        int arg = getArg0(0);
-                        switch (b) {
-                            case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
-                                switch (arg) {
-                                    case 0: // Blinking block.
-                                    case 1: // Blinking block.
-                                    case 2: // Steady block.
-                                        mCursorStyle = CURSOR_STYLE_BLOCK;
-                                        break;
-                                    case 3: // Blinking underline.
-                                    case 4: // Steady underline.
-                                        mCursorStyle = CURSOR_STYLE_UNDERLINE;
-                                        break;
-                                    case 5: // Blinking bar (xterm addition).
-                                    case 6: // Steady bar (xterm addition).
-                                        mCursorStyle = CURSOR_STYLE_BAR;
-                                        break;
-                                }
-                                break;
-                            case 't':
-                            case 'u':
-                                // Set margin-bell volume - ignore.
-                                break;
-                            default:
-                                unknownSequence(b);
-                        }
+                        intermediate = ' ';
                         break;
                     case ESC_CSI_ARGS_ASTERIX:
-                        int attributeChangeExtent = getArg0(0);
-                        if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
-                            // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
-                            setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
-                        } else {
-                            unknownSequence(b);
-                        }
+                        intermediate = '*';
                         break;
-                    default:
-                        unknownSequence(b);
+                    case ESC_CSI_DOUBLE_QUOTE:
+                        intermediate = '"';
+                        break;
+                    case ESC_CSI_SINGLE_QUOTE:
+                        intermediate = '\'';
+                        break;
+                    case ESC_CSI_EXCLAMATION:
+                        intermediate = '!';
                         break;
                 }
-                if (!mContinueSequence) mEscapeState = ESC_NONE;
                 break;
         }
+        mTrace.record(kind, prefix, intermediate, finalByte, mUnknownSequence, args, argCount);
     }
 
     /** When in {@link #ESC_P} ("device control") sequence. */
@@ -833,17 +1292,19 @@ public final class TerminalEmulator {
         switch (b) {
             case (byte) '\\': // End of ESC \ string Terminator
             {
-                String dcs = mOSCOrDeviceControlArgs.toString();
+                // The arguments are inspected in place, so that strings are only created for responses:
+                final StringBuilder dcs = mOSCOrDeviceControlArgs;
+                final int dcsLength = dcs.length();
                 // DCS $ q P t ST. Request Status String (DECRQSS)
-                if (dcs.startsWith("$q")) {
-                    if (dcs.equals("$q\"p")) {
+                if (dcsLength >= 2 && dcs.charAt(0) == '$' && dcs.charAt(1) == 'q') {
+                    if (dcsLength == 4 && dcs.charAt(2) == '"' && dcs.charAt(3) == 'p') {
                         // DECSCL, conformance level, http://www.vt100.net/docs/vt510-rm/DECSCL:
                         String csiString = "64;1\"p";
                         mSession.write("\033P1$r" + csiString + "\033\\");
                     } else {
                         finishSequenceAndLogError("Unrecognized DECRQSS string: '" + dcs + "'");
                     }
-                } else if (dcs.startsWith("+q")) {
+                } else if (dcsLength >= 2 && dcs.charAt(0) == '+' && dcs.charAt(1) == 'q') {
                     // Request Termcap/Terminfo String. The string following the "q" is a list of names encoded in
                     // hexadecimal (2 digits per character) separated by ; which correspond to termcap or terminfo key
                     // names.
@@ -881,14 +1342,13 @@ public final class TerminalEmulator {
                     // respond, as well as http://www.freebsd.org/cgi/man.cgi?query=termcap&sektion=5#CAPABILITIES for
                     // the meaning of e.g. "ku", "kd", "kr", "kl"
 
-                    for (String part : dcs.substring(2).split(";")) {
-                        if (part.length() % 2 == 0) {
-                            StringBuilder transBuffer = new StringBuilder();
-                            for (int i = 0; i < part.length(); i += 2) {
-                                char c = (char) Long.decode("0x" + part.charAt(i) + "" + part.charAt(i + 1)).longValue();
-                                transBuffer.append(c);
-                            }
-                            String trans = transBuffer.toString();
+                    int namesEnd = dcsLength;
+                    while (namesEnd > 2 && dcs.charAt(namesEnd - 1) == ';') namesEnd--;
+                    for (int partStart = 2; partStart <= namesEnd; ) {
+                        int partEnd = dcs.indexOf(";", partStart);
+                        if (partEnd < 0 || partEnd > namesEnd) partEnd = namesEnd;
+                        String trans = decodeHexName(dcs, partStart, partEnd);
+                        if (trans != null) {
                             String responseValue;
                             switch (trans) {
                                 case "Co":
@@ -904,6 +1364,7 @@ public final class TerminalEmulator {
                                         isDecsetInternalBitSet(DECSET_BIT_APPLICATION_KEYPAD));
                                     break;
                             }
+                            StringBuilder response = new StringBuilder("\033P");
                             if (responseValue == null) {
                                 switch (trans) {
                                     case "%1": // Help key - ignore
@@ -913,17 +1374,19 @@ public final class TerminalEmulator {
                                         Log.w(EmulatorDebug.LOG_TAG, "unhandled termcap/terminfo name: '" + trans + "'");
                                 }
                                 // Respond with invalid request:
-                                mSession.write("\033P0+r" + part + "\033\\");
+                                response.append("0+r").append(dcs, partStart, partEnd);
                             } else {
-                                StringBuilder hexEncoded = new StringBuilder();
+                                response.append("1+r").append(dcs, partStart, partEnd).append('=');
                                 for (int j = 0; j < responseValue.length(); j++) {
-                                    hexEncoded.append(String.format("%02X", (int) responseValue.charAt(j)));
+                                    char c = responseValue.charAt(j);
+                                    response.append(HEX_DIGITS[(c >> 4) & 0xF]).append(HEX_DIGITS[c & 0xF]);
                                 }
-                                mSession.write("\033P1+r" + part + "=" + hexEncoded + "\033\\");
                             }
+                            mSession.write(response.append("\033\\").toString());
                         } else {
-                            Log.e(EmulatorDebug.LOG_TAG, "invalid device termcap/terminfo name of odd length: " + part);
+                            Log.e(EmulatorDebug.LOG_TAG, "invalid device termcap/terminfo name: " + dcs.substring(partStart, partEnd));
                         }
+                        partStart = partEnd + 1;
                     }
                 } else {
                     if (LOG_ESCAPE_SEQUENCES)
@@ -944,6 +1407,24 @@ public final class TerminalEmulator {
         }
     }
 
+    /**
+     * Decode a termcap/terminfo name encoded in hexadecimal (2 digits per character) in the given range of the device
+     * control arguments.
+     *
+     * @return the decoded name, or null if the range is not valid hexadecimal.
+     */
+    private static String decodeHexName(CharSequence dcs, int start, int end) {
+        if ((end - start) % 2 != 0) return null;
+        char[] name = new char[(end - start) / 2];
+        for (int i = 0; i < name.length; i++) {
+            int high = Character.digit(dcs.charAt(start + 2 * i), 16);
+            int low = Character.digit(dcs.charAt(start + 2 * i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            name[i] = (char) (high << 4 | low);
+        }
+        return new String(name);
+    }
+
     private int nextTabStop(int numTabs) {
         for (int i = mCursorCol + 1; i < mColumns; i++)
             if (mTabStop[i] && --numTabs == 0) return Math.min(i, mRightMargin);
@@ -985,11 +1466,10 @@ public final class TerminalEmulator {
                         unknownSequence(b);
                         break;
                 }
-                long style = getStyle();
                 for (int row = startRow; row < endRow; row++) {
                     for (int col = startCol; col < endCol; col++) {
                         if ((TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-                            mScreen.setChar(col, row, fillChar, style);
+                            mScreen.setChar(col, row, fillChar, mStyle);
                     }
                 }
                 break;
@@ -1027,17 +1507,17 @@ public final class TerminalEmulator {
                     }
                 }
                 break;
-            case '$':
-                continueSequence(ESC_CSI_QUESTIONMARK_ARG_DOLLAR);
-                return;
             default:
-                parseArg(b);
+                unknownSequence(b);
         }
     }
 
     public void doDecSetOrReset(boolean setting, int externalBit) {
         int internalBit = mapDecSetBitToInternalBit(externalBit);
         if (internalBit != -1) {
+            // The timeout runs from the start of the update, so setting the mode again does not extend it:
+            if (setting && internalBit == DECSET_BIT_SYNCHRONIZED_OUTPUT && !isDecsetInternalBitSet(internalBit))
+                mSynchronizedOutputStartNanos = System.nanoTime();
             setDecsetinternalBit(internalBit, setting);
         }
         switch (externalBit) {
@@ -1119,13 +1599,16 @@ public final class TerminalEmulator {
                     if (resized) resizeScreen();
                     // Clear new screen if alt buffer:
                     if (newScreen == mAltBuffer)
-                        newScreen.blockSet(0, 0, mColumns, mRows, ' ', getStyle());
+                        newScreen.blockSet(0, 0, mColumns, mRows, ' ', mStyle);
                 }
                 break;
             }
             case 2004:
                 // Bracketed paste mode - setting bit is enough.
                 break;
+            case 2026:
+                // Synchronized output - setting bit is enough, the client checks getSynchronizedOutputRemainingNanos().
+                break;
             default:
                 unknownParameter(externalBit);
                 break;
@@ -1207,13 +1690,14 @@ public final class TerminalEmulator {
                 Log.e(EmulatorDebug.LOG_TAG, "(ignored) CSI > MODIFY RESOURCE: " + getArg0(-1) + " to " + getArg1(-1));
                 break;
             default:
-                parseArg(b);
+                unknownSequence(b);
                 break;
         }
     }
 
     private void startEscapeSequence() {
         mEscapeState = ESC;
+        mUnknownSequence = false;
         mArgIndex = 0;
         Arrays.fill(mArgs, -1);
     }
@@ -1228,7 +1712,7 @@ public final class TerminalEmulator {
             }
         } else {
             if (newCursorRow == mBottomMargin) {
-                scrollDownOneLine();
+                scrollDown(1);
                 newCursorRow = mBottomMargin - 1;
             }
             setCursorRow(newCursorRow);
@@ -1243,7 +1727,7 @@ public final class TerminalEmulator {
     private void doEscPound(int b) {
         switch (b) {
             case '8': // Esc # 8 - DEC screen alignment test - fill screen with E's.
-                mScreen.blockSet(0, 0, mColumns, mRows, 'E', getStyle());
+                mScreen.blockSet(0, 0, mColumns, mRows, 'E', mStyle);
                 break;
             default:
                 unknownSequence(b);
@@ -1251,18 +1735,19 @@ public final class TerminalEmulator {
         }
     }
 
-    /** Encountering a character in the {@link #ESC} state. */
+    /** Count the escape sequence started by the character following ESC in {@link #mEscapeSequenceCounts}. */
+    private void countEscapeSequence(int b) {
+        mEscapeSequenceCounts[b == '[' ? TerminalMetrics.ESCAPE_CSI : (b == ']' ? TerminalMetrics.ESCAPE_OSC
+            : (b == 'P' ? TerminalMetrics.ESCAPE_DCS : TerminalMetrics.ESCAPE_ESC))]++;
+    }
+
+    /**
+     * Encountering a character in the {@link #ESC} state which does not lead to another escape state, see
+     * {@link #TRANSITIONS}.
+     */
     private void doEsc(int b) {
+        countEscapeSequence(b);
         switch (b) {
-            case '#':
-                continueSequence(ESC_POUND);
-                break;
-            case '(':
-                continueSequence(ESC_SELECT_LEFT_PAREN);
-                break;
-            case ')':
-                continueSequence(ESC_SELECT_RIGHT_PAREN);
-                break;
             case '6': // Back index (http://www.vt100.net/docs/vt510-rm/DECBI). Move left, insert blank column if start.
                 if (mCursorCol > mLeftMargin) {
                     mCursorCol--;
@@ -1307,8 +1792,7 @@ public final class TerminalEmulator {
                 // http://www.vt100.net/docs/vt100-ug/chapter3.html: "Move the active position to the same horizontal
                 // position on the preceding line. If the active position is at the top margin, a scroll down is performed".
                 if (mCursorRow <= mTopMargin) {
-                    mScreen.blockCopy(0, mTopMargin, mColumns, mBottomMargin - (mTopMargin + 1), 0, mTopMargin + 1);
-                    blockClear(0, mTopMargin, mColumns);
+                    mScreen.scrollUp(mTopMargin, mBottomMargin, 1, mStyle);
                 } else {
                     mCursorRow--;
                 }
@@ -1316,20 +1800,9 @@ public final class TerminalEmulator {
             case 'N': // SS2, ignore.
             case '0': // SS3, ignore.
                 break;
-            case 'P': // Device control string
-                mOSCOrDeviceControlArgs.setLength(0);
-                continueSequence(ESC_P);
-                break;
-            case '[':
-                continueSequence(ESC_CSI);
-                break;
             case '=': // DECKPAM
                 setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, true);
                 break;
-            case ']': // OSC
-                mOSCOrDeviceControlArgs.setLength(0);
-                continueSequence(ESC_OSC);
-                break;
             case '>': // DECKPNM
                 setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, false);
                 break;
@@ -1360,6 +1833,7 @@ public final class TerminalEmulator {
         mEffect = state.mSavedEffect;
         mForeColor = state.mSavedForeColor;
         mBackColor = state.mSavedBackColor;
+        updateStyle();
         int mask = (DECSET_BIT_AUTOWRAP | DECSET_BIT_ORIGIN_MODE);
         mCurrentDecSetFlags = (mCurrentDecSetFlags & ~mask) | (state.mSavedDecFlags & mask);
         mUseLineDrawingG0 = state.mUseLineDrawingG0;
@@ -1370,21 +1844,6 @@ public final class TerminalEmulator {
     /** Following a CSI - Control Sequence Introducer, "\033[". {@link #ESC_CSI}. */
     private void doCsi(int b) {
         switch (b) {
-            case '!':
-                continueSequence(ESC_CSI_EXCLAMATION);
-                break;
-            case '"':
-                continueSequence(ESC_CSI_DOUBLE_QUOTE);
-                break;
-            case '\'':
-                continueSequence(ESC_CSI_SINGLE_QUOTE);
-                break;
-            case '$':
-                continueSequence(ESC_CSI_DOLLAR);
-                break;
-            case '*':
-                continueSequence(ESC_CSI_ARGS_ASTERIX);
-                break;
             case '@': {
                 // "CSI{n}@" - Insert ${n} space characters (ICH) - http://www.vt100.net/docs/vt510-rm/ICH.
                 mAboutToAutoWrap = false;
@@ -1467,21 +1926,14 @@ public final class TerminalEmulator {
                 break;
             case 'L': // "${CSI}{N}L" - insert ${N} lines (IL).
             {
-                int linesAfterCursor = mBottomMargin - mCursorRow;
-                int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToInsert;
-                mScreen.blockCopy(0, mCursorRow, mColumns, linesToMove, 0, mCursorRow + linesToInsert);
-                blockClear(0, mCursorRow, mColumns, linesToInsert);
+                // Lines outside the scrolling region are not affected:
+                if (mCursorRow < mBottomMargin) mScreen.scrollUp(mCursorRow, mBottomMargin, getArg0(1), mStyle);
             }
             break;
             case 'M': // "${CSI}${N}M" - delete N lines (DL).
             {
                 mAboutToAutoWrap = false;
-                int linesAfterCursor = mBottomMargin - mCursorRow;
-                int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToDelete;
-                mScreen.blockCopy(0, mCursorRow + linesToDelete, mColumns, linesToMove, 0, mCursorRow);
-                blockClear(0, mCursorRow + linesToMove, mColumns, linesToDelete);
+                if (mCursorRow < mBottomMargin) mScreen.deleteLines(mCursorRow, mBottomMargin, getArg0(1), mStyle);
             }
             break;
             case 'P': // "${CSI}{N}P" - delete ${N} characters (DCH).
@@ -1500,9 +1952,7 @@ public final class TerminalEmulator {
             }
             break;
             case 'S': { // "${CSI}${N}S" - scroll up ${N} lines (default = 1) (SU).
-                final int linesToScroll = getArg0(1);
-                for (int i = 0; i < linesToScroll; i++)
-                    scrollDownOneLine();
+                scrollDown(getArg0(1));
                 break;
             }
             case 'T':
@@ -1511,11 +1961,7 @@ public final class TerminalEmulator {
                     // http://vt100.net/docs/vt510-rm/SD: "N is the number of lines to move the user window up in page
                     // memory. N new lines appear at the top of the display. N old lines disappear at the bottom of the
                     // display. You cannot pan past the top margin of the current page".
-                    final int linesToScrollArg = getArg0(1);
-                    final int linesBetweenTopAndBottomMargins = mBottomMargin - mTopMargin;
-                    final int linesToScroll = Math.min(linesBetweenTopAndBottomMargins, linesToScrollArg);
-                    mScreen.blockCopy(0, mTopMargin, mColumns, linesBetweenTopAndBottomMargins - linesToScroll, 0, mTopMargin + linesToScroll);
-                    blockClear(0, mTopMargin, mColumns, linesToScroll);
+                    mScreen.scrollUp(mTopMargin, mBottomMargin, getArg0(1), mStyle);
                 } else {
                     // "${CSI}${func};${startx};${starty};${firstrow};${lastrow}T" - initiate highlight mouse tracking.
                     unimplementedSequence(b);
@@ -1523,7 +1969,7 @@ public final class TerminalEmulator {
                 break;
             case 'X': // "${CSI}${N}X" - Erase ${N:=1} character(s) (ECH). FIXME: Clears character attributes?
                 mAboutToAutoWrap = false;
-                mScreen.blockSet(mCursorCol, mCursorRow, Math.min(getArg0(1), mColumns - mCursorCol), 1, ' ', getStyle());
+                mScreen.blockSet(mCursorCol, mCursorRow, Math.min(getArg0(1), mColumns - mCursorCol), 1, ' ', mStyle);
                 break;
             case 'Z': // Cursor Backward Tabulation (CBT). Move the active position n tabs backward.
                 int numberOfTabs = getArg0(1);
@@ -1537,19 +1983,21 @@ public final class TerminalEmulator {
                     }
                 mCursorCol = newCol;
                 break;
-            case '?': // Esc [ ? -- start of a private mode set
-                continueSequence(ESC_CSI_QUESTIONMARK);
-                break;
-            case '>': // "Esc [ >" --
-                continueSequence(ESC_CSI_BIGGERTHAN);
-                break;
             case '`': // Horizontal position absolute (HPA - http://www.vt100.net/docs/vt510-rm/HPA).
                 setCursorColRespectingOriginMode(getArg0(1) - 1);
                 break;
             case 'b': // Repeat the preceding graphic character Ps times (REP).
                 if (mLastEmittedCodePoint == -1) break;
-                final int numRepeat = getArg0(1);
-                for (int i = 0; i < numRepeat; i++) emitCodePoint(mLastEmittedCodePoint);
+                int numRepeat = getArg0(1);
+                while (numRepeat > 0) {
+                    final int repeated = emitRepeatedCodePoint(mLastEmittedCodePoint, numRepeat);
+                    if (repeated > 0) {
+                        numRepeat -= repeated;
+                    } else {
+                        emitCodePoint(mLastEmittedCodePoint);
+                        numRepeat--;
+                    }
+                }
                 break;
             case 'c': // Primary Device Attributes (http://www.vt100.net/docs/vt510-rm/DA1) if argument is missing or zero.
                 // The important part that may still be used by some (tmux stores this value but does not currently use it)
@@ -1679,11 +2127,8 @@ public final class TerminalEmulator {
             case 'u': // Restore cursor (ANSI.SYS).
                 restoreCursor();
                 break;
-            case ' ':
-                continueSequence(ESC_CSI_ARGS_SPACE);
-                break;
             default:
-                parseArg(b);
+                unknownSequence(b);
                 break;
         }
     }
@@ -1793,6 +2238,7 @@ public final class TerminalEmulator {
                     Log.w(EmulatorDebug.LOG_TAG, String.format("SGR unknown code %d", code));
             }
         }
+        updateStyle();
     }
 
     private void doOsc(int b) {
@@ -1800,9 +2246,6 @@ public final class TerminalEmulator {
             case 7: // Bell.
                 doOscSetTextParameters("\007");
                 break;
-            case 27: // Escape.
-                continueSequence(ESC_OSC_ESC);
-                break;
             default:
                 collectOSCArgs(b);
                 break;
@@ -1826,13 +2269,16 @@ public final class TerminalEmulator {
 
     /** An Operating System Controls (OSC) Set Text Parameters. May come here from BEL or ST. */
     private void doOscSetTextParameters(String bellOrStringTerminator) {
+        final StringBuilder args = mOSCOrDeviceControlArgs;
+        final int length = args.length();
         int value = -1;
-        String textParameter = "";
+        // The text parameter is the range [textStart, length) of the arguments, which is parsed in place.
+        int textStart = length;
         // Extract initial $value from initial "$value;..." string.
-        for (int mOSCArgTokenizerIndex = 0; mOSCArgTokenizerIndex < mOSCOrDeviceControlArgs.length(); mOSCArgTokenizerIndex++) {
-            char b = mOSCOrDeviceControlArgs.charAt(mOSCArgTokenizerIndex);
+        for (int i = 0; i < length; i++) {
+            char b = args.charAt(i);
             if (b == ';') {
-                textParameter = mOSCOrDeviceControlArgs.substring(mOSCArgTokenizerIndex + 1);
+                textStart = i + 1;
                 break;
             } else if (b >= '0' && b <= '9') {
                 value = ((value < 0) ? 0 : value * 10) + (b - '0');
@@ -1846,7 +2292,7 @@ public final class TerminalEmulator {
             case 0: // Change icon name and window title to T.
             case 1: // Change icon name to T.
             case 2: // Change window title to T.
-                setTitle(textParameter);
+                if (!oscTextEquals(mTitle, textStart)) setTitle(args.substring(textStart));
                 break;
             case 4:
                 // P s = 4 ; c ; spec → Change Color Number c to the color specified by spec. This can be a name or RGB
@@ -1858,9 +2304,9 @@ public final class TerminalEmulator {
                 // and specification can be given in one control sequence, xterm can make more than one reply.
                 int colorIndex = -1;
                 int parsingPairStart = -1;
-                for (int i = 0; ; i++) {
-                    boolean endOfInput = i == textParameter.length();
-                    char b = endOfInput ? ';' : textParameter.charAt(i);
+                for (int i = textStart; ; i++) {
+                    boolean endOfInput = i == length;
+                    char b = endOfInput ? ';' : args.charAt(i);
                     if (b == ';') {
                         if (parsingPairStart < 0) {
                             parsingPairStart = i + 1;
@@ -1869,7 +2315,7 @@ public final class TerminalEmulator {
                                 unknownSequence(b);
                                 return;
                             } else {
-                                mColors.tryParseColor(colorIndex, textParameter.substring(parsingPairStart, i));
+                                mColors.tryParseColor(colorIndex, args, parsingPairStart, i);
                                 colorIndex = -1;
                                 parsingPairStart = -1;
                             }
@@ -1889,40 +2335,31 @@ public final class TerminalEmulator {
             case 11: // Set background color.
             case 12: // Set cursor color.
                 int specialIndex = TextStyle.COLOR_INDEX_FOREGROUND + (value - 10);
-                int lastSemiIndex = 0;
-                for (int charIndex = 0; ; charIndex++) {
-                    boolean endOfInput = charIndex == textParameter.length();
-                    if (endOfInput || textParameter.charAt(charIndex) == ';') {
-                        try {
-                            String colorSpec = textParameter.substring(lastSemiIndex, charIndex);
-                            if ("?".equals(colorSpec)) {
-                                // Report current color in the same format xterm and gnome-terminal does.
-                                int rgb = mColors.mCurrentColors[specialIndex];
-                                int r = (65535 * ((rgb & 0x00FF0000) >> 16)) / 255;
-                                int g = (65535 * ((rgb & 0x0000FF00) >> 8)) / 255;
-                                int b = (65535 * ((rgb & 0x000000FF))) / 255;
-                                mSession.write("\033]" + value + ";rgb:" + String.format(Locale.US, "%04x", r) + "/" + String.format(Locale.US, "%04x", g) + "/"
-                                    + String.format(Locale.US, "%04x", b) + bellOrStringTerminator);
-                            } else {
-                                mColors.tryParseColor(specialIndex, colorSpec);
-                            }
-                            specialIndex++;
-                            if (endOfInput || (specialIndex > TextStyle.COLOR_INDEX_CURSOR) || ++charIndex >= textParameter.length())
-                                break;
-                            lastSemiIndex = charIndex;
-                        } catch (NumberFormatException e) {
-                            // Ignore.
-                        }
+                for (int specStart = textStart; specStart < length && specialIndex <= TextStyle.COLOR_INDEX_CURSOR; specialIndex++) {
+                    int specEnd = args.indexOf(";", specStart);
+                    if (specEnd < 0) specEnd = length;
+                    if (specEnd - specStart == 1 && args.charAt(specStart) == '?') {
+                        // Report current color in the same format xterm and gnome-terminal does.
+                        int rgb = mColors.mCurrentColors[specialIndex];
+                        int r = (65535 * ((rgb & 0x00FF0000) >> 16)) / 255;
+                        int g = (65535 * ((rgb & 0x0000FF00) >> 8)) / 255;
+                        int b = (65535 * ((rgb & 0x000000FF))) / 255;
+                        mSession.write("\033]" + value + ";rgb:" + String.format(Locale.US, "%04x", r) + "/" + String.format(Locale.US, "%04x", g) + "/"
+                            + String.format(Locale.US, "%04x", b) + bellOrStringTerminator);
+                    } else {
+                        mColors.tryParseColor(specialIndex, args, specStart, specEnd);
                     }
+                    specStart = specEnd + 1;
                 }
                 break;
             case 52: // Manipulate Selection Data. Skip the optional first selection parameter(s).
-                int startIndex = textParameter.indexOf(";") + 1;
+                int selectionEnd = args.indexOf(";", textStart);
+                int startIndex = (selectionEnd < 0) ? textStart : selectionEnd + 1;
                 try {
-                    String clipboardText = new String(Base64.decode(textParameter.substring(startIndex), 0), StandardCharsets.UTF_8);
+                    String clipboardText = new String(Base64.decode(args.substring(startIndex), 0), StandardCharsets.UTF_8);
                     mSession.clipboardText(clipboardText);
                 } catch (Exception e) {
-                    Log.e(EmulatorDebug.LOG_TAG, "OSC Manipulate selection, invalid string '" + textParameter + "");
+                    Log.e(EmulatorDebug.LOG_TAG, "OSC Manipulate selection, invalid string '" + args.substring(textStart) + "");
                 }
                 break;
             case 104:
@@ -1930,22 +2367,20 @@ public final class TerminalEmulator {
                 // resource. Any number of c parameters may be given. These parameters correspond to the ANSI colors 0-7,
                 // their bright versions 8-15, and if supported, the remainder of the 88-color or 256-color table. If no
                 // parameters are given, the entire table will be reset.
-                if (textParameter.isEmpty()) {
+                if (textStart == length) {
                     mColors.reset();
                 } else {
-                    int lastIndex = 0;
-                    for (int charIndex = 0; ; charIndex++) {
-                        boolean endOfInput = charIndex == textParameter.length();
-                        if (endOfInput || textParameter.charAt(charIndex) == ';') {
-                            try {
-                                int colorToReset = Integer.parseInt(textParameter.substring(lastIndex, charIndex));
-                                mColors.reset(colorToReset);
-                                if (endOfInput) break;
-                                charIndex++;
-                                lastIndex = charIndex;
-                            } catch (NumberFormatException e) {
-                                // Ignore.
-                            }
+                    // Invalid or out of range color numbers are ignored.
+                    int colorToReset = -1;
+                    for (int i = textStart; i <= length; i++) {
+                        char b = (i == length) ? ';' : args.charAt(i);
+                        if (b == ';') {
+                            if (colorToReset >= 0 && colorToReset < TextStyle.NUM_INDEXED_COLORS) mColors.reset(colorToReset);
+                            colorToReset = -1;
+                        } else if (b >= '0' && b <= '9' && colorToReset != Integer.MIN_VALUE) {
+                            colorToReset = Math.min(((colorToReset < 0) ? 0 : colorToReset * 10) + (b - '0'), TextStyle.NUM_INDEXED_COLORS);
+                        } else {
+                            colorToReset = Integer.MIN_VALUE;
                         }
                     }
                 }
@@ -1969,11 +2404,11 @@ public final class TerminalEmulator {
     }
 
     private void blockClear(int sx, int sy, int w, int h) {
-        mScreen.blockSet(sx, sy, w, h, ' ', getStyle());
+        mScreen.blockSet(sx, sy, w, h, ' ', mStyle);
     }
 
-    private long getStyle() {
-        return TextStyle.encode(mForeColor, mBackColor, mEffect);
+    private void updateStyle() {
+        mStyle = TextStyle.encode(mForeColor, mBackColor, mEffect);
     }
 
     /** "CSI P_m h" for set or "CSI P_m l" for reset ANSI mode. */
@@ -2012,40 +2447,21 @@ public final class TerminalEmulator {
         setCursorRowCol(newRow, newCol);
     }
 
-    private void scrollDownOneLine() {
-        mScrollCounter++;
+    /** Scroll the contents of the scrolling region up by the given number of lines, as a linefeed at the bottom does. */
+    private void scrollDown(int lines) {
+        // Keep huge counts such as "CSI 2147483647 S" from overflowing the counters, see TerminalBuffer.scrollDown():
+        lines = Math.min(lines, mBottomMargin - mTopMargin + mScreen.mTotalRows);
+        mScrollCounter += lines;
+        mScrolledLines += lines;
         if (mLeftMargin != 0 || mRightMargin != mColumns) {
             // Horizontal margin: Do not put anything into scroll history, just non-margin part of screen up.
-            mScreen.blockCopy(mLeftMargin, mTopMargin + 1, mRightMargin - mLeftMargin, mBottomMargin - mTopMargin - 1, mLeftMargin, mTopMargin);
-            // .. and blank bottom row between margins:
-            mScreen.blockSet(mLeftMargin, mBottomMargin - 1, mRightMargin - mLeftMargin, 1, ' ', mEffect);
+            final int regionRows = mBottomMargin - mTopMargin;
+            final int linesToScroll = Math.min(lines, regionRows);
+            mScreen.blockCopy(mLeftMargin, mTopMargin + linesToScroll, mRightMargin - mLeftMargin, regionRows - linesToScroll, mLeftMargin, mTopMargin);
+            // .. and blank bottom rows between margins:
+            mScreen.blockSet(mLeftMargin, mBottomMargin - linesToScroll, mRightMargin - mLeftMargin, linesToScroll, ' ', mStyle);
         } else {
-            mScreen.scrollDownOneLine(mTopMargin, mBottomMargin, getStyle());
-        }
-    }
-
-    /** Process the next ASCII character of a parameter. */
-    private void parseArg(int b) {
-        if (b >= '0' && b <= '9') {
-            if (mArgIndex < mArgs.length) {
-                int oldValue = mArgs[mArgIndex];
-                int thisDigit = b - '0';
-                int value;
-                if (oldValue >= 0) {
-                    value = oldValue * 10 + thisDigit;
-                } else {
-                    value = thisDigit;
-                }
-                mArgs[mArgIndex] = value;
-            }
-            continueSequence(mEscapeState);
-        } else if (b == ';') {
-            if (mArgIndex < mArgs.length) {
-                mArgIndex++;
-            }
-            continueSequence(mEscapeState);
-        } else {
-            unknownSequence(b);
+            mScreen.scrollDown(mTopMargin, mBottomMargin, lines, mStyle);
         }
     }
 
@@ -2090,6 +2506,7 @@ public final class TerminalEmulator {
     }
 
     private void logError(String errorType) {
+        mUnknownSequence = true;
         if (LOG_ESCAPE_SEQUENCES) {
             StringBuilder buf = new StringBuilder();
             buf.append(errorType);
@@ -2115,6 +2532,7 @@ public final class TerminalEmulator {
     }
 
     private void finishSequenceAndLogError(String error) {
+        mUnknownSequence = true;
         if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, error);
         finishSequence();
     }
@@ -2246,7 +2664,7 @@ public final class TerminalEmulator {
                 if (mCursorRow + 1 < mBottomMargin) {
                     mCursorRow++;
                 } else {
-                    scrollDownOneLine();
+                    scrollDown(1);
                 }
             }
         } else if (cursorInLastColumn && displayWidth == 2) {
@@ -2263,7 +2681,7 @@ public final class TerminalEmulator {
         }
 
         int offsetDueToCombiningChar = ((displayWidth <= 0 && mCursorCol > 0 && !mAboutToAutoWrap) ? 1 : 0);
-        mScreen.setChar(mCursorCol - offsetDueToCombiningChar, mCursorRow, codePoint, getStyle());
+        mScreen.setChar(mCursorCol - offsetDueToCombiningChar, mCursorRow, codePoint, mStyle);
 
         if (autoWrap && displayWidth > 0)
             mAboutToAutoWrap = (mCursorCol == mRightMargin - displayWidth);
@@ -2271,6 +2689,61 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /**
+     * Fast path for repeating {@link #emitCodePoint(int)} of a code point of width one, as done by REP. The repetitions
+     * which fit before the right margin are written in one row operation. If autowrap is disabled the rest would
+     * overwrite the last column with the same character, so they are done as well.
+     *
+     * @return the number of repetitions done, which is 0 if the next one should go through the slow path.
+     */
+    private int emitRepeatedCodePoint(int codePoint, int count) {
+        final int column = mCursorCol;
+        if (mAboutToAutoWrap || mInsertMode || column >= mRightMargin || WcWidth.width(codePoint) != 1
+            || (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)) return 0;
+
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final int written = Math.min(count, mRightMargin - column);
+        mScreen.blockSet(column, mCursorRow, written, 1, codePoint, mStyle);
+        mAboutToAutoWrap = autoWrap && column + written == mRightMargin;
+        mCursorCol = Math.min(column + written, mRightMargin - 1);
+        return autoWrap ? written : count;
+    }
+
+    /**
+     * Fast path for {@link #emitCodePoint(int)} of printable ASCII text, which writes the run of such characters starting
+     * at the offset up to the right margin in one operation, skipping the per character width lookup, wrapping and style
+     * encoding. Text past the right margin is left to the caller, so that it wraps or overwrites the last column through
+     * the slow path.
+     *
+     * @return the number of characters written, which is 0 if the next character should go through the slow path.
+     */
+    private int emitPrintableAsciiRun(byte[] buffer, int offset, int end) {
+        final int column = mCursorCol;
+        if (mAboutToAutoWrap || mInsertMode || column >= mRightMargin
+            || (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)) return 0;
+
+        final int runEnd = Math.min(end, offset + mRightMargin - column);
+        int i = offset;
+        while (i + 8 <= runEnd && isPrintableAscii(mInputView.getLong(i))) i += 8;
+        while (i < runEnd && buffer[i] >= 32 && buffer[i] < 127) i++;
+        final int written = i - offset;
+        if (written == 0) return 0;
+
+        mScreen.setPrintableAscii(column, mCursorRow, buffer, offset, written, mStyle);
+        mCodePointsProcessed += written;
+        mContinueSequence = false;
+        mLastEmittedCodePoint = buffer[i - 1];
+        mAboutToAutoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP) && column + written == mRightMargin;
+        mCursorCol = Math.min(column + written, mRightMargin - 1);
+        return written;
+    }
+
+    /** If all eight bytes of the word are printable ASCII, 0x20 to 0x7E. */
+    private static boolean isPrintableAscii(long word) {
+        // A byte below 0x20 borrows into its high bit when subtracting 0x20, while 0x7F carries into it when adding 1:
+        return ((word | (word - 0x2020202020202020L) | (word + 0x0101010101010101L)) & 0x8080808080808080L) == 0;
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2301,6 +2774,16 @@ public final class TerminalEmulator {
         mScrollCounter = 0;
     }
 
+    /** Start recording processed escape sequences into the trace, or stop recording if it is null. */
+    public void setTrace(TerminalTrace trace) {
+        mTrace = trace;
+    }
+
+    /** The trace recording processed escape sequences, or null if not tracing. */
+    public TerminalTrace getTrace() {
+        return mTrace;
+    }
+
     /** Reset terminal state so user can interact with it regardless of present state. */
     public void reset(boolean erase) {
         if (erase) {
@@ -2320,6 +2803,7 @@ public final class TerminalEmulator {
         mAboutToAutoWrap = false;
         mForeColor = mSavedStateMain.mSavedForeColor = mSavedStateAlt.mSavedForeColor = TextStyle.COLOR_INDEX_FOREGROUND;
         mBackColor = mSavedStateMain.mSavedBackColor = mSavedStateAlt.mSavedBackColor = TextStyle.COLOR_INDEX_BACKGROUND;
+        updateStyle();
         setDefaultTabStops();
 
         mUseLineDrawingG0 = mUseLineDrawingG1 = false;
@@ -2348,6 +2832,15 @@ public final class TerminalEmulator {
         return mTitle;
     }
 
+    /** Whether the OSC text parameter starting at the given index of the arguments equals the given, possibly null, text. */
+    private boolean oscTextEquals(String text, int start) {
+        final StringBuilder args = mOSCOrDeviceControlArgs;
+        if (text == null || text.length() != args.length() - start) return false;
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) != args.charAt(start + i)) return false;
+        return true;
+    }
+
     /** Change the terminal session's title. */
     private void setTitle(String newTitle) {
         String oldTitle = mTitle;
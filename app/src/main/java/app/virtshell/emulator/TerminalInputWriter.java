@@ -0,0 +1,242 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Buffers input for the terminal process (typed keys, pastes and terminal responses) and writes it to the process from
+ * a dedicated thread in {@link #writeTo(OutputStream)}.
+ * <p>
+ * Input is kept in two lanes. Single bytes which interrupt or suspend the foreground job (^C, ^Z and ^\) go to a small
+ * priority lane which is written before any queued bulk input, so that they are not stuck behind a large paste to a
+ * slow serial line. Everything else goes to the bulk lane. Whatever has accumulated in both lanes while a write was in
+ * progress is written with the next system call, so typing faster than the process reads does not cost a system call
+ * per key.
+ * <p>
+ * Writing never blocks: the bulk lane is a spool of fixed size chunks which grows as needed. Instead writers get
+ * backpressure through the return value of {@link #write(byte[], int, int, Runnable)}, which tells if more input than
+ * the high-water mark is waiting, and can be told when their input has been written to continue. Any thread may write.
+ */
+final class TerminalInputWriter {
+
+    /** The maximum number of bytes to pass to a single write system call, and the size of spool chunks. */
+    private static final int MAX_WRITE_SIZE = 4096;
+
+    /** A callback to run when the lanes have been written up to the given totals. */
+    private static final class Completion {
+        final long mBulkTarget, mPriorityTarget;
+        final Runnable mCallback;
+
+        Completion(long bulkTarget, long priorityTarget, Runnable callback) {
+            mBulkTarget = bulkTarget;
+            mPriorityTarget = priorityTarget;
+            mCallback = callback;
+        }
+    }
+
+    /** The bulk lane, consumed from {@link #mHeadOffset} in the first chunk and filled to {@link #mTailFill} in the last. */
+    private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+    private int mHeadOffset;
+    private int mTailFill = MAX_WRITE_SIZE;
+    private int mBulkLength;
+    /** A consumed chunk kept around for reuse, so that steady typing does not allocate. */
+    private byte[] mSpareChunk;
+
+    private final byte[] mPriority = new byte[64];
+    private int mPriorityLength;
+
+    /** The total number of bytes ever queued to and written from the bulk lane. */
+    private long mBulkQueued, mBulkWritten;
+    /** The total number of bytes ever queued to and written from the priority lane. */
+    private long mPriorityQueued, mPriorityWritten;
+
+    private final ArrayDeque<Completion> mCompletions = new ArrayDeque<>();
+
+    private int mHighWaterMark;
+    private boolean mOpen = true;
+
+    TerminalInputWriter(int highWaterMark) {
+        mHighWaterMark = highWaterMark;
+    }
+
+    /** If the byte is written to the process ahead of other queued input when written on its own. */
+    static boolean isPriorityByte(byte b) {
+        return b == 3 /* ^C */ || b == 26 /* ^Z */ || b == 28 /* ^\ */;
+    }
+
+    synchronized void setHighWaterMark(int highWaterMark) {
+        mHighWaterMark = highWaterMark;
+    }
+
+    /**
+     * Queue bytes for writing without blocking.
+     *
+     * @param onWritten if not null, run on the writing thread once the bytes have been written. Never run if the writer
+     *                  is closed first.
+     * @return true if the bytes were queued and the number of pending bytes is below the high-water mark. False means
+     * that the writer should wait for a completion before writing more, or that the writer was closed.
+     */
+    boolean write(byte[] data, int offset, int count, Runnable onWritten) {
+        synchronized (this) {
+            if (!mOpen) return false;
+            if (count == 1 && isPriorityByte(data[offset]) && mPriorityLength < mPriority.length) {
+                mPriority[mPriorityLength++] = data[offset];
+                mPriorityQueued++;
+            } else {
+                queueBulk(data, offset, count);
+            }
+            if (onWritten != null && (mBulkQueued > mBulkWritten || mPriorityQueued > mPriorityWritten)) {
+                mCompletions.addLast(new Completion(mBulkQueued, mPriorityQueued, onWritten));
+                onWritten = null;
+            }
+            notifyAll();
+        }
+        // Nothing was pending, so already done:
+        if (onWritten != null) onWritten.run();
+        return getPendingBytes() < mHighWaterMark;
+    }
+
+    private void queueBulk(byte[] data, int offset, int count) {
+        while (count > 0) {
+            if (mTailFill == MAX_WRITE_SIZE) {
+                byte[] chunk = mSpareChunk;
+                mSpareChunk = null;
+                mChunks.addLast(chunk == null ? new byte[MAX_WRITE_SIZE] : chunk);
+                mTailFill = 0;
+            }
+            final int run = Math.min(count, MAX_WRITE_SIZE - mTailFill);
+            System.arraycopy(data, offset, mChunks.peekLast(), mTailFill, run);
+            mTailFill += run;
+            mBulkLength += run;
+            mBulkQueued += run;
+            offset += run;
+            count -= run;
+        }
+    }
+
+    /** The total number of bytes written to the process. */
+    synchronized long getWrittenBytes() {
+        return mBulkWritten + mPriorityWritten;
+    }
+
+    /** The number of queued bytes not yet written to the process. */
+    synchronized int getPendingBytes() {
+        return mBulkLength + mPriorityLength;
+    }
+
+    /**
+     * Wait until all bytes queued before this call have been written to the process.
+     *
+     * @param timeoutMillis the maximum time to wait, or 0 to wait as long as it takes.
+     * @return true if everything was written, false on timeout or if the writer was closed first.
+     */
+    synchronized boolean flush(long timeoutMillis) {
+        final long bulkTarget = mBulkQueued, priorityTarget = mPriorityQueued;
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mBulkWritten < bulkTarget || mPriorityWritten < priorityTarget) {
+            if (!mOpen) return false;
+            long wait = 0;
+            if (timeoutMillis > 0) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+            }
+            waitUninterruptibly(wait);
+        }
+        return true;
+    }
+
+    /** Stop writing, drop queued input and completions, and make future writes and pending flushes return false. */
+    synchronized void close() {
+        mOpen = false;
+        mChunks.clear();
+        mBulkLength = mPriorityLength = 0;
+        mCompletions.clear();
+        notifyAll();
+    }
+
+    /** Write queued input to the stream until {@link #close()} is called, priority bytes first. */
+    void writeTo(OutputStream out) throws IOException {
+        final byte[] buffer = new byte[MAX_WRITE_SIZE];
+        while (true) {
+            int priorityBytes, bulkBytes;
+            synchronized (this) {
+                while (mOpen && mPriorityLength == 0 && mBulkLength == 0) waitUninterruptibly(0);
+                if (!mOpen) return;
+
+                priorityBytes = mPriorityLength;
+                System.arraycopy(mPriority, 0, buffer, 0, priorityBytes);
+                mPriorityLength = 0;
+
+                bulkBytes = Math.min(mBulkLength, buffer.length - priorityBytes);
+                for (int copied = 0; copied < bulkBytes; ) {
+                    byte[] chunk = mChunks.peekFirst();
+                    int available = (chunk == mChunks.peekLast() ? mTailFill : MAX_WRITE_SIZE) - mHeadOffset;
+                    int run = Math.min(available, bulkBytes - copied);
+                    System.arraycopy(chunk, mHeadOffset, buffer, priorityBytes + copied, run);
+                    copied += run;
+                    mHeadOffset += run;
+                    if (run == available) {
+                        mChunks.removeFirst();
+                        mSpareChunk = chunk;
+                        mHeadOffset = 0;
+                        if (mChunks.isEmpty()) mTailFill = MAX_WRITE_SIZE;
+                    }
+                }
+                mBulkLength -= bulkBytes;
+            }
+
+            out.write(buffer, 0, priorityBytes + bulkBytes);
+
+            Completion completion;
+            synchronized (this) {
+                mPriorityWritten += priorityBytes;
+                mBulkWritten += bulkBytes;
+                // Wake up flushes:
+                notifyAll();
+                completion = nextCompletion();
+            }
+            while (completion != null) {
+                completion.mCallback.run();
+                synchronized (this) {
+                    completion = nextCompletion();
+                }
+            }
+        }
+    }
+
+    private Completion nextCompletion() {
+        Completion completion = mCompletions.peekFirst();
+        if (completion == null || completion.mBulkTarget > mBulkWritten || completion.mPriorityTarget > mPriorityWritten)
+            return null;
+        return mCompletions.removeFirst();
+    }
+
+    private void waitUninterruptibly(long timeoutMillis) {
+        try {
+            wait(timeoutMillis);
+        } catch (InterruptedException e) {
+            // Like ByteQueue, ignore interruptions.
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms describing the data moved through a {@link TerminalSession}, read through
+ * {@link TerminalSession#getMetrics(Snapshot)}.
+ * <p>
+ * Each value is only ever updated by one thread (the reader thread for reads, the emulating thread for appends) and
+ * once per read or appended batch, never per byte. Updates are ordered stores without locks or allocation, and a
+ * snapshot may be taken from any thread at any time.
+ */
+public final class TerminalMetrics {
+
+    /** Escape sequence types counted in {@link Snapshot#mEscapeSequences}. */
+    public static final int ESCAPE_ESC = 0, ESCAPE_CSI = 1, ESCAPE_OSC = 2, ESCAPE_DCS = 3;
+    public static final int ESCAPE_TYPES = 4;
+
+    /**
+     * The number of buckets in histograms. Bucket 0 counts zero values, and bucket i &gt; 0 counts values in
+     * [2^(i-1), 2^i), with the last bucket also counting anything larger.
+     */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    private static final int BYTES_READ = 0;
+    private static final int READS = 1;
+    private static final int QUEUE_HIGH_WATER = 2;
+    private static final int APPEND_BATCHES = 3;
+    private static final int APPEND_NANOS = 4;
+    private static final int CODE_POINTS = 5;
+    private static final int SCROLLED_LINES = 6;
+    private static final int ESCAPE_SEQUENCES = 7;
+    private static final int READ_SIZE_HISTOGRAM = ESCAPE_SEQUENCES + ESCAPE_TYPES;
+    private static final int APPEND_MICROS_HISTOGRAM = READ_SIZE_HISTOGRAM + HISTOGRAM_BUCKETS;
+    private static final int SLOTS = APPEND_MICROS_HISTOGRAM + HISTOGRAM_BUCKETS;
+
+    /** A copy of the metrics at one point in time. Reuse instances to avoid allocation. */
+    public static final class Snapshot {
+        /** The {@link System#nanoTime()} when the snapshot was taken, for computing rates between snapshots. */
+        public long mTimestampNanos;
+        /** Bytes read from the process, and the number of read system calls returning them. */
+        public long mBytesRead, mReads;
+        /** Bytes written to the process, including terminal responses. */
+        public long mBytesWritten;
+        /** The most bytes ever waiting between the reader thread and the emulator. */
+        public long mQueueHighWater;
+        /** Calls of {@link TerminalEmulator#append} for batches of process output, and the total time spent in them. */
+        public long mAppendBatches, mAppendNanos;
+        /** Code points processed by the emulator. */
+        public long mCodePoints;
+        /** Lines scrolled by the emulator. */
+        public long mScrolledLines;
+        /** Escape sequences started, indexed by {@link #ESCAPE_ESC}, {@link #ESCAPE_CSI} and so on. */
+        public final long[] mEscapeSequences = new long[ESCAPE_TYPES];
+        /** Histogram of the sizes of reads from the process in bytes, see {@link #HISTOGRAM_BUCKETS}. */
+        public final long[] mReadSizes = new long[HISTOGRAM_BUCKETS];
+        /** Histogram of the time spent appending each batch in microseconds, see {@link #HISTOGRAM_BUCKETS}. */
+        public final long[] mAppendMicros = new long[HISTOGRAM_BUCKETS];
+
+        /** The code points processed per second between an earlier snapshot and this one. */
+        public double codePointsPerSecond(Snapshot earlier) {
+            return perSecond(mCodePoints - earlier.mCodePoints, earlier);
+        }
+
+        /** The lines scrolled per second between an earlier snapshot and this one. */
+        public double scrolledLinesPerSecond(Snapshot earlier) {
+            return perSecond(mScrolledLines - earlier.mScrolledLines, earlier);
+        }
+
+        /** The bytes read per second between an earlier snapshot and this one. */
+        public double bytesReadPerSecond(Snapshot earlier) {
+            return perSecond(mBytesRead - earlier.mBytesRead, earlier);
+        }
+
+        private double perSecond(long delta, Snapshot earlier) {
+            long nanos = mTimestampNanos - earlier.mTimestampNanos;
+            return nanos <= 0 ? 0 : delta * 1e9 / nanos;
+        }
+    }
+
+    private final AtomicLongArray mValues = new AtomicLongArray(SLOTS);
+
+    /** The histogram bucket for a value, see {@link #HISTOGRAM_BUCKETS}. */
+    static int bucket(long value) {
+        return Math.min(64 - Long.numberOfLeadingZeros(value), HISTOGRAM_BUCKETS - 1);
+    }
+
+    /** Add to a value only updated by the calling thread. */
+    private void add(int slot, long delta) {
+        mValues.lazySet(slot, mValues.get(slot) + delta);
+    }
+
+    /** Record a read from the process. Only called by the reader thread. */
+    void recordRead(int bytes, int queuedBytes) {
+        add(BYTES_READ, bytes);
+        add(READS, 1);
+        add(READ_SIZE_HISTOGRAM + bucket(bytes), 1);
+        if (queuedBytes > mValues.get(QUEUE_HIGH_WATER)) mValues.lazySet(QUEUE_HIGH_WATER, queuedBytes);
+    }
+
+    /**
+     * Record a batch appended to the emulator, and publish its counters. Only called by the thread doing the
+     * emulation.
+     */
+    void recordAppend(long nanos, TerminalEmulator emulator) {
+        add(APPEND_BATCHES, 1);
+        add(APPEND_NANOS, nanos);
+        add(APPEND_MICROS_HISTOGRAM + bucket(nanos / 1000), 1);
+        mValues.lazySet(CODE_POINTS, emulator.mCodePointsProcessed);
+        mValues.lazySet(SCROLLED_LINES, emulator.mScrolledLines);
+        for (int i = 0; i < ESCAPE_TYPES; i++)
+            mValues.lazySet(ESCAPE_SEQUENCES + i, emulator.mEscapeSequenceCounts[i]);
+    }
+
+    /** Copy the current values into the snapshot, except for {@link Snapshot#mBytesWritten}. */
+    void snapshot(Snapshot into) {
+        into.mTimestampNanos = System.nanoTime();
+        into.mBytesRead = mValues.get(BYTES_READ);
+        into.mReads = mValues.get(READS);
+        into.mQueueHighWater = mValues.get(QUEUE_HIGH_WATER);
+        into.mAppendBatches = mValues.get(APPEND_BATCHES);
+        into.mAppendNanos = mValues.get(APPEND_NANOS);
+        into.mCodePoints = mValues.get(CODE_POINTS);
+        into.mScrolledLines = mValues.get(SCROLLED_LINES);
+        for (int i = 0; i < ESCAPE_TYPES; i++)
+            into.mEscapeSequences[i] = mValues.get(ESCAPE_SEQUENCES + i);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            into.mReadSizes[i] = mValues.get(READ_SIZE_HISTOGRAM + i);
+            into.mAppendMicros[i] = mValues.get(APPEND_MICROS_HISTOGRAM + i);
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the output of a terminal process with timestamps, for replaying real workloads in benchmarks and tests.
+ * <p>
+ * Recorded data is appended to a bounded buffer without ever blocking the recording thread, and written to the output
+ * stream by a separate thread. If the buffer is full the data is dropped, and a gap record noting the number of dropped
+ * bytes is written instead once there is room again.
+ * <p>
+ * The format is binary, with all numbers unsigned LEB128 varints:
+ * <pre>
+ * recording = MAGIC columns rows record*
+ * record    = delta-micros tag payload
+ * </pre>
+ * where delta-micros is the time since the previous record (or the start of the recording) in microseconds on a
+ * monotonic clock, and the two lowest bits of tag give the record type:
+ * <ul>
+ * <li>{@link #RECORD_OUTPUT}: process output, tag &gt;&gt; 2 bytes of payload.</li>
+ * <li>{@link #RECORD_RESIZE}: the terminal was resized, the payload is columns and rows.</li>
+ * <li>{@link #RECORD_GAP}: tag &gt;&gt; 2 bytes of output were dropped, no payload.</li>
+ * </ul>
+ * Recordings are read back with {@link TerminalRecordingReader}.
+ */
+public final class TerminalRecorder {
+
+    /** The file header, ending in the format version. */
+    static final byte[] MAGIC = {'V', 'S', 'H', 'R', 'E', 'C', 0, 1};
+
+    public static final int RECORD_OUTPUT = 0;
+    public static final int RECORD_RESIZE = 1;
+    public static final int RECORD_GAP = 2;
+
+    /** The maximum size of the varints preceding a record's data. */
+    private static final int MAX_RECORD_HEADER_SIZE = 3 * 10;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private int mBufferStart, mBufferLength;
+    private final byte[] mHeader = new byte[MAX_RECORD_HEADER_SIZE];
+
+    private long mLastRecordNanos;
+    /** Dropped bytes not yet noted in a gap record. */
+    private long mPendingGapBytes;
+    private long mDroppedBytes;
+    private boolean mStopped;
+
+    private final Thread mWriterThread;
+
+    /**
+     * Start recording to the stream, which is closed when the recording is stopped.
+     *
+     * @param bufferSize the number of bytes which may be waiting to be written before output is dropped.
+     */
+    public TerminalRecorder(OutputStream out, int columns, int rows, int bufferSize) {
+        mOut = out;
+        mBuffer = new byte[bufferSize];
+        mLastRecordNanos = System.nanoTime();
+
+        int length = 0;
+        for (byte b : MAGIC)
+            mBuffer[length++] = b;
+        length = putVarint(mBuffer, length, columns);
+        length = putVarint(mBuffer, length, rows);
+        mBufferLength = length;
+
+        mWriterThread = new Thread("TerminalRecorder") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        mWriterThread.start();
+    }
+
+    /** Record process output. Never blocks on I/O. */
+    public synchronized void recordOutput(byte[] data, int offset, int length) {
+        if (mStopped) return;
+        final long now = System.nanoTime();
+        if (!writeGapIfPending(now)) {
+            mPendingGapBytes += length;
+            mDroppedBytes += length;
+            return;
+        }
+        int headerLength = putVarint(mHeader, 0, (now - mLastRecordNanos) / 1000);
+        headerLength = putVarint(mHeader, headerLength, ((long) length << 2) | RECORD_OUTPUT);
+        if (mBuffer.length - mBufferLength < headerLength + length) {
+            mPendingGapBytes += length;
+            mDroppedBytes += length;
+            return;
+        }
+        mLastRecordNanos = now;
+        put(mHeader, 0, headerLength);
+        put(data, offset, length);
+        notifyAll();
+    }
+
+    /** Record that the terminal was resized. */
+    public synchronized void recordResize(int columns, int rows) {
+        if (mStopped) return;
+        final long now = System.nanoTime();
+        if (!writeGapIfPending(now)) return;
+        int headerLength = putVarint(mHeader, 0, (now - mLastRecordNanos) / 1000);
+        headerLength = putVarint(mHeader, headerLength, RECORD_RESIZE);
+        headerLength = putVarint(mHeader, headerLength, columns);
+        headerLength = putVarint(mHeader, headerLength, rows);
+        if (mBuffer.length - mBufferLength < headerLength) return;
+        mLastRecordNanos = now;
+        put(mHeader, 0, headerLength);
+        notifyAll();
+    }
+
+    /** The number of output bytes which have been dropped since the buffer was full. */
+    public synchronized long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * Stop recording. Output recorded so far is still written, and the stream closed, by the writer thread, so this
+     * does not block on I/O.
+     */
+    public void stop() {
+        synchronized (this) {
+            mStopped = true;
+            notifyAll();
+        }
+    }
+
+    /** Wait for the writer thread to finish after {@link #stop()}. */
+    void awaitStopped() throws InterruptedException {
+        mWriterThread.join();
+    }
+
+    /** Write a pending gap record if there is one, returning false if there is no room for it. */
+    private boolean writeGapIfPending(long now) {
+        if (mPendingGapBytes == 0) return true;
+        int headerLength = putVarint(mHeader, 0, (now - mLastRecordNanos) / 1000);
+        headerLength = putVarint(mHeader, headerLength, (mPendingGapBytes << 2) | RECORD_GAP);
+        if (mBuffer.length - mBufferLength < headerLength) return false;
+        mLastRecordNanos = now;
+        put(mHeader, 0, headerLength);
+        mPendingGapBytes = 0;
+        return true;
+    }
+
+    private void put(byte[] data, int offset, int length) {
+        final int end = (mBufferStart + mBufferLength) % mBuffer.length;
+        final int firstRun = Math.min(length, mBuffer.length - end);
+        System.arraycopy(data, offset, mBuffer, end, firstRun);
+        System.arraycopy(data, offset + firstRun, mBuffer, 0, length - firstRun);
+        mBufferLength += length;
+    }
+
+    private void writeLoop() {
+        final byte[] chunk = new byte[Math.min(mBuffer.length, 64 * 1024)];
+        try (OutputStream out = mOut) {
+            while (true) {
+                int length;
+                synchronized (this) {
+                    while (mBufferLength == 0 && !mStopped) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // Ignore.
+                        }
+                    }
+                    if (mBufferLength == 0) return;
+                    length = Math.min(mBufferLength, chunk.length);
+                    final int firstRun = Math.min(length, mBuffer.length - mBufferStart);
+                    System.arraycopy(mBuffer, mBufferStart, chunk, 0, firstRun);
+                    System.arraycopy(mBuffer, 0, chunk, firstRun, length - firstRun);
+                    mBufferStart = (mBufferStart + length) % mBuffer.length;
+                    mBufferLength -= length;
+                }
+                out.write(chunk, 0, length);
+            }
+        } catch (IOException e) {
+            Log.w(EmulatorDebug.LOG_TAG, "Session recording failed: " + e.getMessage());
+            synchronized (this) {
+                mStopped = true;
+            }
+        }
+    }
+
+    /** Put value as an unsigned LEB128 varint at the offset, returning the offset after it. */
+    static int putVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+}
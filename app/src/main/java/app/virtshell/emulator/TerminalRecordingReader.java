@@ -0,0 +1,145 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Reads recordings made by {@link TerminalRecorder}, one record at a time. */
+public final class TerminalRecordingReader implements Closeable {
+
+    private final InputStream mIn;
+    private final int mColumns, mRows;
+
+    private long mDeltaMicros;
+    private byte[] mData = new byte[4096];
+    private int mDataLength;
+    private int mResizeColumns, mResizeRows;
+    private long mGapBytes;
+
+    /** Start reading a recording, reading its header right away. */
+    public TerminalRecordingReader(InputStream in) throws IOException {
+        mIn = new BufferedInputStream(in);
+        for (byte expected : TerminalRecorder.MAGIC) {
+            int b = mIn.read();
+            if (b != (expected & 0xFF)) throw new IOException("Not a terminal recording, or unsupported version");
+        }
+        mColumns = (int) readVarint();
+        mRows = (int) readVarint();
+    }
+
+    /** The number of columns of the terminal when recording started. */
+    public int getColumns() {
+        return mColumns;
+    }
+
+    /** The number of rows of the terminal when recording started. */
+    public int getRows() {
+        return mRows;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return the type of the record, {@link TerminalRecorder#RECORD_OUTPUT} and so on, or -1 at the end of the
+     * recording.
+     */
+    public int next() throws IOException {
+        int first = mIn.read();
+        if (first == -1) return -1;
+        mDeltaMicros = readVarint(first);
+        long tag = readVarint();
+        int type = (int) (tag & 3);
+        switch (type) {
+            case TerminalRecorder.RECORD_OUTPUT:
+                mDataLength = (int) (tag >>> 2);
+                if (mDataLength > mData.length) mData = new byte[Math.max(mDataLength, 2 * mData.length)];
+                for (int read = 0; read < mDataLength; ) {
+                    int n = mIn.read(mData, read, mDataLength - read);
+                    if (n == -1) throw new EOFException("Truncated output record");
+                    read += n;
+                }
+                break;
+            case TerminalRecorder.RECORD_RESIZE:
+                mResizeColumns = (int) readVarint();
+                mResizeRows = (int) readVarint();
+                break;
+            case TerminalRecorder.RECORD_GAP:
+                mGapBytes = tag >>> 2;
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+        return type;
+    }
+
+    /** The time between the current record and the previous one, or the start of the recording. */
+    public long getDeltaMicros() {
+        return mDeltaMicros;
+    }
+
+    /** The output of the current output record, valid up to {@link #getDataLength()} until the next record. */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /** The new number of columns of the current resize record. */
+    public int getResizeColumns() {
+        return mResizeColumns;
+    }
+
+    /** The new number of rows of the current resize record. */
+    public int getResizeRows() {
+        return mResizeRows;
+    }
+
+    /** The number of output bytes missing from the recording at the current gap record. */
+    public long getGapBytes() {
+        return mGapBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private long readVarint() throws IOException {
+        return readVarint(mIn.read());
+    }
+
+    private long readVarint(int b) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (b == -1) throw new EOFException("Truncated varint");
+            if (shift > 63) throw new IOException("Varint too long");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            b = mIn.read();
+        }
+    }
+
+}
@@ -22,45 +22,98 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package app.virtshell.emulator;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * A row in a terminal, composed of a fixed number of cells.
  * <p>
- * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering. The styles of the
+ * cells are stored as runs of columns sharing the same style, since most rows only use a few styles. Rows with a single
+ * style share an interned style run from the {@link TerminalStylePalette} of their buffer instead of having arrays of
+ * their own.
+ * <p>
+ * Rows which have scrolled into the transcript are frozen into a compact form by {@link #freeze(TerminalTextArena)},
+ * and thawed again by {@link #thaw()} when their text is needed.
  */
 public final class TerminalRow {
 
     private static final float SPARE_CAPACITY_FACTOR = 1.5f;
+    /** The initial capacity for style runs, which is enough for most rows. */
+    static final int INITIAL_STYLE_RUNS = 4;
+
+    /** Flags of the compact form written by {@link #writeCompact(ByteBuffer)}. */
+    private static final int COMPACT_LINE_WRAP = 1;
+    private static final int COMPACT_WIDE_TEXT = 2;
+    private static final int COMPACT_NON_ONE_WIDTH = 4;
 
     /** The number of columns in this terminal row. */
     private final int mColumns;
-    /** The text filling this terminal row. */
+    /** The text filling this terminal row. Null while the row is frozen. */
     public char[] mText;
+    /**
+     * The text of a frozen row up to its last non-space char, as Latin-1 or, if {@link #mFrozenTextWide}, as big-endian
+     * UTF-16. It is stored in a chunk shared with other rows, see {@link TerminalTextArena}, from
+     * {@link #mFrozenTextStart} and on for {@link #mFrozenTextLength} bytes. Kept after thawing until the text is
+     * modified, so that an unmodified row can be frozen again without copying it.
+     */
+    private byte[] mFrozenText;
+    private int mFrozenTextStart, mFrozenTextLength;
+    private boolean mFrozenTextWide;
     /** The number of java char:s used in {@link #mText}. */
     private short mSpaceUsed;
     /** If this row has been line wrapped due to text output at the end of line. */
     boolean mLineWrap;
-    /** The style bits of each cell in the row. See {@link TextStyle}. */
-    final long[] mStyle;
+    /**
+     * The first column of each style run. A run lasts until the start of the next run, or the end of the row for the
+     * last run. The first run starts at column 0, and adjacent runs always have different styles.
+     */
+    private short[] mStyleRunStarts;
+    /** The style bits of each style run. See {@link TextStyle}. */
+    private long[] mStyleRunStyles;
+    /** Where the interned style runs of single style rows come from, and where unused style run arrays go. */
+    private final TerminalStylePalette mPalette;
+    /** The number of style runs in use. */
+    private int mStyleRuns;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
+        this(columns, style, new TerminalStylePalette());
+    }
+
+    /** Construct a blank row with a specified style, sharing the style storage of the other rows of a buffer. */
+    TerminalRow(int columns, long style, TerminalStylePalette palette) {
         mColumns = columns;
         mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
-        mStyle = new long[columns];
+        mPalette = palette;
+        mStyleRunStarts = TerminalStylePalette.SINGLE_RUN_STARTS;
         clear(style);
     }
 
+    /** Construct a frozen row, to be filled in by {@link #readCompact(ByteBuffer, TerminalStylePalette)}. */
+    private TerminalRow(int columns, TerminalStylePalette palette) {
+        mColumns = columns;
+        mPalette = palette;
+    }
+
     /** NOTE: The sourceX2 is exclusive. */
     public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
+        if (sourceX1 >= sourceX2) return;
         mHasNonOneWidthOrSurrogateChars |= line.mHasNonOneWidthOrSurrogateChars;
         final int x1 = line.findStartOfColumn(sourceX1);
         final int x2 = line.findStartOfColumn(sourceX2);
         boolean startingFromSecondHalfOfWideChar = (sourceX1 > 0 && line.wideDisplayCharacterStartingAt(sourceX1 - 1));
         final char[] sourceChars = (this == line) ? Arrays.copyOf(line.mText, line.mText.length) : line.mText;
+        // The styles are copied run by run after the text, from a copy if the source is this row:
+        final int sourceRuns = line.mStyleRuns;
+        final short[] sourceRunStarts = (this == line) ? Arrays.copyOf(mStyleRunStarts, sourceRuns) : line.mStyleRunStarts;
+        final long[] sourceRunStyles = (this == line) ? Arrays.copyOf(mStyleRunStyles, sourceRuns) : line.mStyleRunStyles;
+        final int startColumn = sourceX1;
+        final int startDestinationX = destinationX;
+        final int firstSourceRun = line.findStyleRun(sourceX1);
+        int sourceRun = firstSourceRun;
         int latestNonCombiningWidth = 0;
         for (int i = x1; i < x2; i++) {
             char sourceChar = sourceChars[i];
@@ -75,8 +128,15 @@ public final class TerminalRow {
                 destinationX += latestNonCombiningWidth;
                 sourceX1 += latestNonCombiningWidth;
                 latestNonCombiningWidth = w;
+                while (sourceRun + 1 < sourceRuns && sourceRunStarts[sourceRun + 1] <= sourceX1) sourceRun++;
             }
-            setChar(destinationX, codePoint, line.getStyle(sourceX1));
+            setCharText(destinationX, codePoint, sourceRunStyles[sourceRun]);
+        }
+
+        for (int run = firstSourceRun; run < sourceRuns && sourceRunStarts[run] < sourceX2; run++) {
+            final int runStart = Math.max(sourceRunStarts[run], startColumn);
+            final int runEnd = (run + 1 < sourceRuns) ? Math.min(sourceRunStarts[run + 1], sourceX2) : sourceX2;
+            setStyle(startDestinationX + runStart - startColumn, startDestinationX + runEnd - startColumn, sourceRunStyles[run]);
         }
     }
 
@@ -123,7 +183,7 @@ public final class TerminalRow {
         }
     }
 
-    private boolean wideDisplayCharacterStartingAt(int column) {
+    boolean wideDisplayCharacterStartingAt(int column) {
         for (int currentCharIndex = 0, currentColumn = 0; currentCharIndex < mSpaceUsed; ) {
             char c = mText[currentCharIndex++];
             int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, mText[currentCharIndex++]) : c;
@@ -138,16 +198,40 @@ public final class TerminalRow {
     }
 
     public void clear(long style) {
+        clear(style, null);
+    }
+
+    /**
+     * Clear the row like {@link #clear(long)}, taking over the given text array if the row is frozen and the array is
+     * large enough, as given up by another row in {@link #freeze(TerminalTextArena)}.
+     */
+    void clear(long style, char[] spareText) {
+        if (mText == null)
+            mText = (spareText != null && spareText.length >= mColumns) ? spareText : new char[(int) (SPARE_CAPACITY_FACTOR * mColumns)];
+        mFrozenText = null;
         Arrays.fill(mText, ' ');
-        Arrays.fill(mStyle, style);
+        if (mStyleRunStarts != TerminalStylePalette.SINGLE_RUN_STARTS) {
+            mPalette.release(mStyleRunStarts, mStyleRunStyles);
+            mStyleRunStarts = TerminalStylePalette.SINGLE_RUN_STARTS;
+        }
+        mStyleRunStyles = mPalette.intern(style);
+        mStyleRuns = 1;
         mSpaceUsed = (short) mColumns;
         mHasNonOneWidthOrSurrogateChars = false;
     }
 
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
     public void setChar(int columnToSet, int codePoint, long style) {
-        mStyle[columnToSet] = style;
+        setStyle(columnToSet, columnToSet + 1, style);
+        setCharText(columnToSet, codePoint, style);
+    }
 
+    /**
+     * Set the text of a column without changing its style. The style is only used for the other half of wide characters
+     * which are overwritten.
+     */
+    private void setCharText(int columnToSet, int codePoint, long style) {
+        mFrozenText = null;
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
 
         // Fast path when we don't have any chars with width != 1
@@ -256,14 +340,340 @@ public final class TerminalRow {
         }
     }
 
+    /** Set a run of printable ASCII characters, which all have width one, starting at the specified column. */
+    public void setPrintableAscii(int columnToSet, byte[] text, int offset, int length, long style) {
+        mFrozenText = null;
+        if (mHasNonOneWidthOrSurrogateChars) {
+            // Columns and chars do not line up, so the row may need shifting around wide or combining chars:
+            for (int i = 0; i < length; i++)
+                setChar(columnToSet + i, text[offset + i], style);
+            return;
+        }
+        final char[] chars = mText;
+        for (int i = 0; i < length; i++)
+            chars[columnToSet + i] = (char) text[offset + i];
+        setStyle(columnToSet, columnToSet + length, style);
+    }
+
+    /**
+     * Set the columns from startColumn (inclusive) to endColumn (exclusive) to the same code point and style, as if
+     * {@link #setChar(int, int, long)} was called for each of them. Code points of width one replace the range in one
+     * array operation, with wide characters crossing its ends split once at the edges.
+     */
+    public void fill(int startColumn, int endColumn, int codePoint, long style) {
+        if (startColumn >= endColumn) return;
+        mFrozenText = null;
+        if (WcWidth.width(codePoint) != 1) {
+            for (int column = startColumn; column < endColumn; column++)
+                setChar(column, codePoint, style);
+            return;
+        }
+
+        final boolean supplementary = codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+        if (!supplementary && (!mHasNonOneWidthOrSurrogateChars || (startColumn == 0 && endColumn == mColumns))) {
+            // Columns and chars line up (or will, since the whole row is replaced):
+            if (mHasNonOneWidthOrSurrogateChars) {
+                mSpaceUsed = (short) mColumns;
+                mHasNonOneWidthOrSurrogateChars = false;
+            }
+            Arrays.fill(mText, startColumn, endColumn, (char) codePoint);
+            setStyle(startColumn, endColumn, style);
+            return;
+        }
+
+        // Setting the first and last column splits any wide character crossing the edges of the range, so that the
+        // columns in between can be replaced without looking at what they contain:
+        setChar(startColumn, codePoint, style);
+        if (endColumn - startColumn == 1) return;
+        setChar(endColumn - 1, codePoint, style);
+        final int innerColumns = endColumn - startColumn - 2;
+        if (innerColumns == 0) return;
+
+        final int charsPerColumn = supplementary ? 2 : 1;
+        final int innerStart = findStartOfColumn(startColumn + 1);
+        final int innerEnd = findStartOfColumn(endColumn - 1);
+        final int newInnerEnd = innerStart + innerColumns * charsPerColumn;
+        final int newSpaceUsed = mSpaceUsed + newInnerEnd - innerEnd;
+        char[] text = mText;
+        if (newSpaceUsed > text.length) {
+            char[] newText = new char[newSpaceUsed + mColumns];
+            System.arraycopy(text, 0, newText, 0, innerStart);
+            System.arraycopy(text, innerEnd, newText, newInnerEnd, mSpaceUsed - innerEnd);
+            mText = text = newText;
+        } else {
+            System.arraycopy(text, innerEnd, text, newInnerEnd, mSpaceUsed - innerEnd);
+        }
+        if (supplementary) {
+            final char high = Character.highSurrogate(codePoint);
+            final char low = Character.lowSurrogate(codePoint);
+            for (int i = innerStart; i < newInnerEnd; i += 2) {
+                text[i] = high;
+                text[i + 1] = low;
+            }
+        } else {
+            Arrays.fill(text, innerStart, newInnerEnd, (char) codePoint);
+        }
+        mSpaceUsed = (short) newSpaceUsed;
+        setStyle(startColumn + 1, endColumn - 1, style);
+    }
+
     boolean isBlank() {
+        if (mText == null) return mFrozenTextLength == 0;
         for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
             if (mText[charIndex] != ' ') return false;
         return true;
     }
 
+    /** If this row is frozen, in which case only its styles, line wrap and space used can be used until it is thawed. */
+    boolean isFrozen() {
+        return mText == null;
+    }
+
+    /**
+     * Freeze this row into a compact form, as done once it has scrolled into the transcript where it is rarely touched
+     * again. The text is trimmed of trailing spaces and stored as one byte per char when possible, and the style runs
+     * give up spare capacity. A frozen row can be cleared, but has to be thawed before its text is read or modified.
+     *
+     * @param arena where the text is stored.
+     * @return the text array no longer used, or null if the row was frozen already.
+     */
+    char[] freeze(TerminalTextArena arena) {
+        if (mText == null) return null;
+        final char[] text = mText;
+        mText = null;
+        freezeStyles();
+        // Thawed but not modified since:
+        if (mFrozenText != null) return text;
+
+        int length = mSpaceUsed;
+        while (length > 0 && text[length - 1] == ' ')
+            length--;
+        // Copy the text as Latin-1, noting if that lost any bits:
+        int start = arena.reserve(length);
+        byte[] frozenText = arena.getChunk();
+        int allBits = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = text[i];
+            allBits |= c;
+            frozenText[start + i] = (byte) c;
+        }
+        final boolean latin1 = allBits <= 0xFF;
+        if (!latin1) {
+            start = arena.reserve(2 * length);
+            frozenText = arena.getChunk();
+            for (int i = 0; i < length; i++) {
+                frozenText[start + 2 * i] = (byte) (text[i] >> 8);
+                frozenText[start + 2 * i + 1] = (byte) text[i];
+            }
+        }
+        mFrozenText = frozenText;
+        mFrozenTextStart = start;
+        mFrozenTextLength = latin1 ? length : 2 * length;
+        mFrozenTextWide = !latin1;
+        return text;
+    }
+
+    private void freezeStyles() {
+        if (mStyleRunStarts != TerminalStylePalette.SINGLE_RUN_STARTS) {
+            if (mStyleRuns == 1) {
+                // Styled differently once, but a single style now:
+                mPalette.release(mStyleRunStarts, mStyleRunStyles);
+                mStyleRunStarts = TerminalStylePalette.SINGLE_RUN_STARTS;
+                mStyleRunStyles = mPalette.intern(mStyleRunStyles[0]);
+            } else if (mStyleRunStarts.length > INITIAL_STYLE_RUNS) {
+                mStyleRunStarts = Arrays.copyOf(mStyleRunStarts, mStyleRuns);
+                mStyleRunStyles = Arrays.copyOf(mStyleRunStyles, mStyleRuns);
+            }
+        }
+    }
+
+    /** Restore the text of a frozen row, see {@link #freeze(TerminalTextArena)}. */
+    void thaw() {
+        if (mText != null) return;
+        final byte[] frozenText = mFrozenText;
+        final int start = mFrozenTextStart;
+        final char[] text = new char[Math.max((int) (SPARE_CAPACITY_FACTOR * mColumns), mSpaceUsed)];
+        final int length;
+        if (mFrozenTextWide) {
+            length = mFrozenTextLength / 2;
+            for (int i = 0; i < length; i++)
+                text[i] = (char) (((frozenText[start + 2 * i] & 0xFF) << 8) | (frozenText[start + 2 * i + 1] & 0xFF));
+        } else {
+            length = mFrozenTextLength;
+            for (int i = 0; i < length; i++)
+                text[i] = (char) (frozenText[start + i] & 0xFF);
+        }
+        Arrays.fill(text, length, text.length, ' ');
+        mText = text;
+    }
+
+    /** The number of columns of this row, which may differ from the screen for rows read back from a scrollback file. */
+    int getColumns() {
+        return mColumns;
+    }
+
+    /** The most bytes {@link #writeCompact(ByteBuffer)} writes for this row. */
+    int getMaxCompactSize() {
+        final int textBytes = (mText == null || mFrozenText != null) ? mFrozenTextLength : 2 * mSpaceUsed;
+        return 11 + textBytes + 10 * mStyleRuns;
+    }
+
+    /**
+     * Write this row in the form of a frozen row, for a {@link TerminalScrollbackFile}: the columns, space used and
+     * flags, then the text as stored by {@link #freeze(TerminalTextArena)} and the style runs.
+     */
+    void writeCompact(ByteBuffer out) {
+        out.putShort((short) mColumns).putShort(mSpaceUsed);
+        int flags = (mLineWrap ? COMPACT_LINE_WRAP : 0) | (mHasNonOneWidthOrSurrogateChars ? COMPACT_NON_ONE_WIDTH : 0);
+        if (mText == null || mFrozenText != null) {
+            // Frozen, or thawed but not modified since:
+            if (mFrozenTextWide) flags |= COMPACT_WIDE_TEXT;
+            out.put((byte) flags).putInt(mFrozenTextLength).put(mFrozenText, mFrozenTextStart, mFrozenTextLength);
+        } else {
+            final char[] text = mText;
+            int length = mSpaceUsed;
+            while (length > 0 && text[length - 1] == ' ')
+                length--;
+            int allBits = 0;
+            for (int i = 0; i < length; i++)
+                allBits |= text[i];
+            if (allBits <= 0xFF) {
+                out.put((byte) flags).putInt(length);
+                for (int i = 0; i < length; i++)
+                    out.put((byte) text[i]);
+            } else {
+                out.put((byte) (flags | COMPACT_WIDE_TEXT)).putInt(2 * length);
+                for (int i = 0; i < length; i++)
+                    out.putChar(text[i]);
+            }
+        }
+        out.putShort((short) mStyleRuns);
+        for (int run = 0; run < mStyleRuns; run++)
+            out.putShort(mStyleRunStarts[run]).putLong(mStyleRunStyles[run]);
+    }
+
+    /** Read a row written by {@link #writeCompact(ByteBuffer)}. The row is frozen and has the columns it was written with. */
+    static TerminalRow readCompact(ByteBuffer in, TerminalStylePalette palette) {
+        final TerminalRow row = new TerminalRow(in.getShort(), palette);
+        row.mSpaceUsed = in.getShort();
+        final int flags = in.get();
+        row.mLineWrap = (flags & COMPACT_LINE_WRAP) != 0;
+        row.mHasNonOneWidthOrSurrogateChars = (flags & COMPACT_NON_ONE_WIDTH) != 0;
+        row.mFrozenTextWide = (flags & COMPACT_WIDE_TEXT) != 0;
+        final byte[] text = new byte[in.getInt()];
+        in.get(text);
+        row.mFrozenText = text;
+        row.mFrozenTextLength = text.length;
+
+        final int runs = in.getShort();
+        if (runs == 1) {
+            in.getShort();
+            row.mStyleRunStarts = TerminalStylePalette.SINGLE_RUN_STARTS;
+            row.mStyleRunStyles = palette.intern(in.getLong());
+        } else {
+            row.mStyleRunStarts = new short[runs];
+            row.mStyleRunStyles = new long[runs];
+            for (int run = 0; run < runs; run++) {
+                row.mStyleRunStarts[run] = in.getShort();
+                row.mStyleRunStyles[run] = in.getLong();
+            }
+        }
+        row.mStyleRuns = runs;
+        return row;
+    }
+
     public final long getStyle(int column) {
-        return mStyle[column];
+        return mStyleRunStyles[findStyleRun(column)];
+    }
+
+    /** The number of style runs, runs of columns with the same style, in this row. */
+    public int getStyleRunCount() {
+        return mStyleRuns;
+    }
+
+    /** The first column of a style run. */
+    public int getStyleRunStart(int run) {
+        return mStyleRunStarts[run];
+    }
+
+    /** The column after the last column of a style run. */
+    public int getStyleRunEnd(int run) {
+        return (run + 1 < mStyleRuns) ? mStyleRunStarts[run + 1] : mColumns;
+    }
+
+    /** The style of a style run. */
+    public long getStyleRunStyle(int run) {
+        return mStyleRunStyles[run];
+    }
+
+    /** The index of the style run containing the column. */
+    public int findStyleRun(int column) {
+        final short[] starts = mStyleRunStarts;
+        int low = 0;
+        int high = mStyleRuns - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= column) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Set the style of the columns from startColumn (inclusive) to endColumn (exclusive). */
+    public void setStyle(int startColumn, int endColumn, long style) {
+        if (startColumn >= endColumn) return;
+        final int runs = mStyleRuns;
+        short[] starts = mStyleRunStarts;
+        long[] styles = mStyleRunStyles;
+        final int first = findStyleRun(startColumn);
+        final boolean withinFirst = first + 1 == runs || starts[first + 1] >= endColumn;
+        // The common case of writing with the style already there:
+        if (withinFirst && styles[first] == style) return;
+        final int last = withinFirst ? first : findStyleRun(endColumn - 1);
+
+        // The runs before the range are kept, including the first run if the range starts inside it:
+        final int keptBefore = (starts[first] < startColumn) ? first + 1 : first;
+        final boolean mergeBefore = keptBefore > 0 && styles[keptBefore - 1] == style;
+        // The rest of the last run after the range needs a run of its own, unless it has the new style:
+        final long lastStyle = styles[last];
+        final boolean lastContinues = endColumn < mColumns && (last + 1 == runs || starts[last + 1] > endColumn);
+        final boolean insertAfter = lastContinues && lastStyle != style;
+        int keptAfter = last + 1;
+        // A run starting right after the range with the new style is merged into it:
+        if (!lastContinues && keptAfter < runs && styles[keptAfter] == style) keptAfter++;
+
+        final int afterPosition = keptBefore + (mergeBefore ? 0 : 1) + (insertAfter ? 1 : 0);
+        final int newRuns = afterPosition + runs - keptAfter;
+        final boolean shared = starts == TerminalStylePalette.SINGLE_RUN_STARTS;
+        if (shared || newRuns > starts.length) {
+            // The interned run of a single style row is never modified, so the row needs arrays of its own:
+            final int capacity = shared ? INITIAL_STYLE_RUNS : Math.min(Math.max(newRuns, 2 * starts.length), mColumns);
+            final short[] newStarts = mPalette.newRunStarts(capacity);
+            final long[] newStyles = mPalette.newRunStyles(capacity);
+            System.arraycopy(starts, 0, newStarts, 0, keptBefore);
+            System.arraycopy(styles, 0, newStyles, 0, keptBefore);
+            System.arraycopy(starts, keptAfter, newStarts, afterPosition, runs - keptAfter);
+            System.arraycopy(styles, keptAfter, newStyles, afterPosition, runs - keptAfter);
+            if (!shared) mPalette.release(starts, styles);
+            mStyleRunStarts = starts = newStarts;
+            mStyleRunStyles = styles = newStyles;
+        } else {
+            System.arraycopy(starts, keptAfter, starts, afterPosition, runs - keptAfter);
+            System.arraycopy(styles, keptAfter, styles, afterPosition, runs - keptAfter);
+        }
+        int run = keptBefore;
+        if (!mergeBefore) {
+            starts[run] = (short) startColumn;
+            styles[run++] = style;
+        }
+        if (insertAfter) {
+            starts[run] = (short) endColumn;
+            styles[run] = lastStyle;
+        }
+        mStyleRuns = newRuns;
     }
 
 }
@@ -0,0 +1,238 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The oldest rows of the transcript of a {@link TerminalBuffer}, spilled to an append-only file so that the history is
+ * limited by storage instead of by the heap.
+ * <p>
+ * Rows are stored in the compact form of {@link TerminalRow#writeCompact(ByteBuffer)}, in blocks of
+ * {@link #ROWS_PER_BLOCK} rows. The latest block is filled in memory and appended to the file when full, so only the
+ * offsets of the blocks stay on the heap. Blocks are read back through memory mapped regions of the file when their rows
+ * are scrolled to or searched, and the rows of the latest blocks read are cached.
+ * <p>
+ * The file is deleted as soon as it is opened, so that its space is given back when the app process goes away, even if
+ * it crashes.
+ */
+final class TerminalScrollbackFile {
+
+    private static final int ROWS_PER_BLOCK = 64;
+    /** The size of the regions of the file mapped at a time, so that neighbouring blocks share a mapping. */
+    private static final int MAPPED_REGION_SIZE = 1024 * 1024;
+    /** The number of blocks whose rows are kept, enough for a screen spanning a few blocks. */
+    private static final int CACHED_BLOCKS = 4;
+
+    private final FileChannel mChannel;
+    /** The style storage of the rows read back. */
+    private final TerminalStylePalette mStylePalette = new TerminalStylePalette();
+
+    /** The offset of each block written to the file, followed by the length of the file. */
+    private long[] mBlockOffsets = new long[64];
+    private int mWrittenBlocks;
+    /** The rows after the written blocks, to be written as the next block once it is full. */
+    private ByteBuffer mPendingBlock = ByteBuffer.allocate(16 * 1024);
+    private int mPendingRows;
+    /** Set when writing to the file has failed, after which no more rows are taken. */
+    private boolean mFailed;
+
+    private MappedByteBuffer mMappedRegion;
+    private long mMappedRegionStart;
+
+    /** The blocks whose rows are in {@link #mCachedRows}, or -1, as a ring of {@link #CACHED_BLOCKS} entries. */
+    private final int[] mCachedBlocks = new int[CACHED_BLOCKS];
+    private final TerminalRow[][] mCachedRows = new TerminalRow[CACHED_BLOCKS][];
+    private int mNextCachedBlock;
+    /** The number of columns the cached rows have been fitted to. */
+    private int mCachedColumns;
+
+    /** Create a scrollback file in the given directory, normally the cache directory of the app. */
+    static TerminalScrollbackFile create(File directory) throws IOException {
+        final File file = File.createTempFile("scrollback", null, directory);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        if (!file.delete()) file.deleteOnExit();
+        return new TerminalScrollbackFile(randomAccessFile.getChannel());
+    }
+
+    private TerminalScrollbackFile(FileChannel channel) {
+        mChannel = channel;
+        Arrays.fill(mCachedBlocks, -1);
+    }
+
+    /** The number of rows spilled, with the oldest row at index 0. */
+    int getRowCount() {
+        return mWrittenBlocks * ROWS_PER_BLOCK + mPendingRows;
+    }
+
+    /**
+     * Spill a row after the ones already spilled.
+     *
+     * @return if the row was taken, which it is not if writing to the file has failed.
+     */
+    boolean append(TerminalRow row) {
+        if (mFailed) return false;
+        final int size = row.getMaxCompactSize();
+        if (mPendingBlock.remaining() < size) {
+            final ByteBuffer newBlock = ByteBuffer.allocate(Math.max(2 * mPendingBlock.capacity(), mPendingBlock.position() + size));
+            newBlock.put(mPendingBlock.array(), 0, mPendingBlock.position());
+            mPendingBlock = newBlock;
+        }
+        row.writeCompact(mPendingBlock);
+        // The cached rows of the pending block lack the new row:
+        for (int i = 0; i < CACHED_BLOCKS; i++)
+            if (mCachedBlocks[i] == mWrittenBlocks) mCachedBlocks[i] = -1;
+        if (++mPendingRows == ROWS_PER_BLOCK) writePendingBlock();
+        return true;
+    }
+
+    private void writePendingBlock() {
+        final ByteBuffer block = ByteBuffer.wrap(mPendingBlock.array(), 0, mPendingBlock.position());
+        final long offset = mBlockOffsets[mWrittenBlocks];
+        try {
+            while (block.hasRemaining())
+                mChannel.write(block, offset + block.position());
+        } catch (IOException e) {
+            // The block stays pending, so that its rows can still be read:
+            Log.e(EmulatorDebug.LOG_TAG, "failed writing scrollback, dropping the rows scrolled out from now on", e);
+            mFailed = true;
+            return;
+        }
+        if (mWrittenBlocks + 2 > mBlockOffsets.length) mBlockOffsets = Arrays.copyOf(mBlockOffsets, 2 * mBlockOffsets.length);
+        mBlockOffsets[++mWrittenBlocks] = offset + block.limit();
+        mPendingBlock.position(0);
+        mPendingRows = 0;
+    }
+
+    /**
+     * Get a spilled row, fitted to the given number of columns. Rows spilled before the number of columns changed are
+     * cut or padded, not wrapped again. The row is read only: it is shared with later calls, and changing it does not
+     * change the file.
+     *
+     * @param index   the index of the row, from 0 for the oldest row to {@link #getRowCount()} - 1.
+     * @param columns the number of columns of the screen.
+     */
+    TerminalRow getRow(int index, int columns) {
+        if (columns != mCachedColumns) {
+            Arrays.fill(mCachedBlocks, -1);
+            Arrays.fill(mCachedRows, null);
+            mCachedColumns = columns;
+        }
+        final int block = index / ROWS_PER_BLOCK;
+        for (int i = 0; i < CACHED_BLOCKS; i++)
+            if (mCachedBlocks[i] == block) return mCachedRows[i][index % ROWS_PER_BLOCK];
+
+        final TerminalRow[] rows = readBlock(block, columns);
+        mCachedBlocks[mNextCachedBlock] = block;
+        mCachedRows[mNextCachedBlock] = rows;
+        mNextCachedBlock = (mNextCachedBlock + 1) % CACHED_BLOCKS;
+        return rows[index % ROWS_PER_BLOCK];
+    }
+
+    private TerminalRow[] readBlock(int block, int columns) {
+        final int rowCount = (block == mWrittenBlocks) ? mPendingRows : ROWS_PER_BLOCK;
+        final TerminalRow[] rows = new TerminalRow[rowCount];
+        try {
+            final ByteBuffer in = (block == mWrittenBlocks) ? ByteBuffer.wrap(mPendingBlock.array(), 0, mPendingBlock.position()) : mapBlock(block);
+            for (int i = 0; i < rowCount; i++)
+                rows[i] = fitToColumns(TerminalRow.readCompact(in, mStylePalette), columns);
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "failed reading scrollback", e);
+            for (int i = 0; i < rowCount; i++)
+                rows[i] = new TerminalRow(columns, TextStyle.NORMAL, mStylePalette);
+        }
+        return rows;
+    }
+
+    /** Get the data of a written block, positioned at its start, mapping the region of the file around it if needed. */
+    private ByteBuffer mapBlock(int block) throws IOException {
+        final long start = mBlockOffsets[block];
+        final long end = mBlockOffsets[block + 1];
+        if (mMappedRegion == null || start < mMappedRegionStart || end > mMappedRegionStart + mMappedRegion.capacity()) {
+            // The history is mostly read upwards from the newest rows, so the region extends further before the block:
+            final long fileLength = mBlockOffsets[mWrittenBlocks];
+            final long regionStart = Math.max(0, Math.min(start, end - MAPPED_REGION_SIZE * 3 / 4));
+            final long regionEnd = Math.min(fileLength, Math.max(end, regionStart + MAPPED_REGION_SIZE));
+            mMappedRegion = mChannel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+            mMappedRegionStart = regionStart;
+        }
+        final ByteBuffer in = mMappedRegion.duplicate();
+        in.position((int) (start - mMappedRegionStart));
+        return in;
+    }
+
+    /** Thaw a row read back, making a copy of it with the given number of columns if it has a different number. */
+    private TerminalRow fitToColumns(TerminalRow row, int columns) {
+        row.thaw();
+        final int rowColumns = row.getColumns();
+        if (rowColumns == columns) return row;
+        final TerminalRow fitted = new TerminalRow(columns, row.getStyleRunStyle(row.getStyleRunCount() - 1), mStylePalette);
+        int copiedColumns = Math.min(rowColumns, columns);
+        // A wide char which does not fit is left out:
+        if (copiedColumns < rowColumns && row.wideDisplayCharacterStartingAt(copiedColumns - 1)) copiedColumns--;
+        fitted.copyInterval(row, 0, copiedColumns, 0);
+        fitted.mLineWrap = row.mLineWrap;
+        return fitted;
+    }
+
+    /** Remove all rows, as when the transcript is cleared. */
+    void clear() {
+        try {
+            mChannel.truncate(0);
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "failed truncating scrollback", e);
+        }
+        mWrittenBlocks = 0;
+        mPendingBlock.position(0);
+        mPendingRows = 0;
+        mFailed = false;
+        mMappedRegion = null;
+        Arrays.fill(mCachedBlocks, -1);
+        Arrays.fill(mCachedRows, null);
+    }
+
+    /**
+     * Close the file, giving its space back once the last mapped region is collected as well. Afterwards there are no
+     * rows, and none are taken.
+     */
+    void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "failed closing scrollback", e);
+        }
+        mWrittenBlocks = 0;
+        mPendingBlock = ByteBuffer.allocate(0);
+        mPendingRows = 0;
+        mFailed = true;
+        mMappedRegion = null;
+        Arrays.fill(mCachedBlocks, -1);
+        Arrays.fill(mCachedRows, null);
+    }
+
+}
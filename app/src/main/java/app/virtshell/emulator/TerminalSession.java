@@ -30,21 +30,34 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.util.Log;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
  * {@link #updateSize(int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * All callback methods will be performed on the main thread. Terminal emulation is also performed on the main thread,
+ * unless the session was created with {@code emulateInBackground} set, in which case the thread reading the process
+ * output (the parser thread) also feeds it to the {@link TerminalEmulator}.
+ * <p>
+ * In that mode the emulator is mutated while the main thread is drawing it, so code on the main thread that reads
+ * state spanning several rows or fields (rendering, selection, transcript text) or changes it must hold the monitor of
+ * the emulator object while doing so. The parser thread holds it while processing each chunk of output, so whoever
+ * holds it sees the screen between complete chunks and never a half-applied escape sequence.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
@@ -83,25 +96,73 @@ public final class TerminalSession extends TerminalOutput {
     }
 
     private static final int MSG_NEW_INPUT = 1;
+    private static final int MSG_SCREEN_UPDATED = 2;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_SYNCHRONIZED_OUTPUT_TIMEOUT = 8;
+
+    /**
+     * The maximum time to spend draining {@link #mProcessToTerminalIOQueue} in one {@link #MSG_NEW_INPUT}, about half a
+     * frame at 60 Hz. If there is still output left when it runs out, a new message is posted so that the Looper gets to
+     * process touch and key events and draw in between.
+     */
+    private static final long MAX_INPUT_DRAIN_NANOS = 8_000_000L;
+
+    /** The size of the first reads from the pty. Doubled each time a read fills the buffer, up to {@link #MAX_READ_SIZE}. */
+    private static final int MIN_READ_SIZE = 4 * 1024;
+    private static final int MAX_READ_SIZE = 64 * 1024;
+    /** The number of bytes to process between checks of {@link #MAX_INPUT_DRAIN_NANOS}. */
+    private static final int INPUT_DRAIN_CHUNK_SIZE = 4 * 1024;
+    /**
+     * The number of bytes appended at a time when emulating in the background. The emulator lock is released between
+     * slices, so that the main thread waits for at most one slice instead of a whole read before it can draw.
+     */
+    private static final int BACKGROUND_APPEND_SLICE_SIZE = 4 * 1024;
+
+    /** The default for {@link #setInputHighWaterMark(int)}. */
+    private static final int DEFAULT_INPUT_HIGH_WATER_MARK = 64 * 1024;
+
+    /** The amount of recorded output which may wait to be written before output is dropped from a recording. */
+    private static final int RECORDING_BUFFER_SIZE = 1024 * 1024;
+
+    /** The number of rows of the emulator, including the screen, unless set by {@link #setTranscriptRows(int)}. */
+    public static final int DEFAULT_TRANSCRIPT_ROWS = 5000;
 
     public final String mHandle = UUID.randomUUID().toString();
 
     TerminalEmulator mEmulator;
 
+    /** Feeds bytes read from {@link #mProcessToTerminalIOQueue} to {@link #mEmulator} in place. */
+    private Consumer<ByteBuffer> mAppendToEmulator;
+
     /**
      * A queue written to from a separate thread when the process outputs, and read by main thread to process by
-     * terminal emulator.
+     * terminal emulator. Unused when emulating in the background, where the reader thread feeds the emulator directly.
      */
-    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
+    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(MAX_READ_SIZE);
     /**
-     * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
-     * writing to the {@link #mTerminalFileDescriptor}.
+     * Input written to from the main thread due to user interaction (and from the parser thread for terminal responses
+     * when emulating in the background), and written by another thread to the {@link #mTerminalFileDescriptor}.
      */
-    final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
-    /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
+    final TerminalInputWriter mTerminalToProcessWriter = new TerminalInputWriter(DEFAULT_INPUT_HIGH_WATER_MARK);
+    /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessWriter */
     private final byte[] mUtf8InputBuffer = new byte[5];
 
+    /**
+     * Set while a {@link #MSG_NEW_INPUT} is posted but not yet handled, so that the reader thread posts at most one
+     * message per session no matter how many reads complete in the meantime.
+     */
+    private final AtomicBoolean mNewInputPending = new AtomicBoolean();
+    /**
+     * The number of reads (or, with emulation in the background, processed chunks) which did not need a new message to
+     * the main thread since one was already pending.
+     */
+    private final AtomicLong mCoalescedWakeups = new AtomicLong();
+
+    private final TerminalMetrics mMetrics = new TerminalMetrics();
+
+    /** Records process output if not null, see {@link #startRecording(OutputStream)}. */
+    private volatile TerminalRecorder mRecorder;
+
     /** Callback which gets notified when a session finishes or changes title. */
     final SessionChangedCallback mChangeCallback;
 
@@ -120,17 +181,54 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** If terminal emulation is done by {@link #mParserThread} instead of on the main thread. */
+    private final boolean mEmulateInBackground;
+    /**
+     * The thread feeding process output to the emulator if {@link #mEmulateInBackground}, otherwise null. This is the
+     * thread reading from the pty, so the output is decoded straight from the buffer it was read into.
+     */
+    private Thread mParserThread;
+    /** Where the history which does not fit in the emulator is spilled, or null. */
+    private final File mScrollbackDirectory;
+    /** The file in {@link #mScrollbackDirectory} the history of {@link #mEmulator} is spilled to, or null. */
+    private TerminalScrollbackFile mScrollbackFile;
+    /** The size of the transcript of the emulator, in rows or as a budget of bytes if that is positive. */
+    private int mTranscriptRows = DEFAULT_TRANSCRIPT_ROWS;
+    private long mTranscriptMemoryBudget;
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
-
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
-                notifyScreenUpdate();
+            if (msg.what == MSG_SCREEN_UPDATED) {
+                mNewInputPending.set(false);
+                notifyScreenUpdateUnlessSynchronized();
+                return;
+            } else if (msg.what == MSG_SYNCHRONIZED_OUTPUT_TIMEOUT) {
+                notifyScreenUpdateUnlessSynchronized();
+                return;
+            }
+
+            // Clear before draining, so that output arriving from now on results in a new message:
+            if (msg.what == MSG_NEW_INPUT) mNewInputPending.set(false);
+
+            // Process everything available, but within a time budget, and only notify about the change once:
+            final long drainStartTime = System.nanoTime();
+            long batchStartTime = drainStartTime;
+            boolean receivedInput = false;
+            // The queue is not used when emulating in the background:
+            while (!mEmulateInBackground
+                && mProcessToTerminalIOQueue.read(mAppendToEmulator, INPUT_DRAIN_CHUNK_SIZE) > 0) {
+                receivedInput = true;
+                final long now = System.nanoTime();
+                mMetrics.recordAppend(now - batchStartTime, mEmulator);
+                batchStartTime = now;
+                if (now - drainStartTime > MAX_INPUT_DRAIN_NANOS) {
+                    postNewInputMessage(MSG_NEW_INPUT);
+                    break;
+                }
             }
+            if (receivedInput) notifyScreenUpdateUnlessSynchronized();
 
             if (msg.what == MSG_PROCESS_EXITED) {
                 int exitCode = (Integer) msg.obj;
@@ -147,7 +245,9 @@ public final class TerminalSession extends TerminalOutput {
                 exitDescription += "]";
 
                 byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
+                synchronized (mEmulator) {
+                    mEmulator.append(bytesToWrite, bytesToWrite.length);
+                }
                 notifyScreenUpdate();
                 mChangeCallback.onSessionFinished(TerminalSession.this);
             }
@@ -158,9 +258,30 @@ public final class TerminalSession extends TerminalOutput {
     private final String[] mEnv;
 
     public TerminalSession(String[] args, String[] env, String cwd, SessionChangedCallback changeCallback) {
+        this(args, env, cwd, changeCallback, false);
+    }
+
+    /**
+     * @param emulateInBackground if process output should be fed to the emulator by the thread reading it, keeping
+     *                            the main thread responsive during output floods. See the class documentation for the
+     *                            locking this requires.
+     */
+    public TerminalSession(String[] args, String[] env, String cwd, SessionChangedCallback changeCallback,
+                           boolean emulateInBackground) {
+        this(args, env, cwd, changeCallback, emulateInBackground, null);
+    }
+
+    /**
+     * @param scrollbackDirectory where to create a {@link TerminalScrollbackFile} holding the history which does not
+     *                            fit in memory, or null to discard that history.
+     */
+    public TerminalSession(String[] args, String[] env, String cwd, SessionChangedCallback changeCallback,
+                           boolean emulateInBackground, File scrollbackDirectory) {
         mChangeCallback = changeCallback;
         this.mArgs = args;
         this.mEnv = env;
+        mEmulateInBackground = emulateInBackground;
+        mScrollbackDirectory = scrollbackDirectory;
     }
 
     /** Inform the attached pty of the new size and reflow or initialize the emulator. */
@@ -169,10 +290,56 @@ public final class TerminalSession extends TerminalOutput {
             initializeEmulator(columns, rows);
         } else {
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
-            mEmulator.resize(columns, rows);
+            synchronized (mEmulator) {
+                mEmulator.resize(columns, rows);
+            }
+            final TerminalRecorder recorder = mRecorder;
+            if (recorder != null) recorder.recordResize(columns, rows);
         }
     }
 
+    /**
+     * Set the number of rows of the emulator, including the screen, instead of {@link #DEFAULT_TRANSCRIPT_ROWS}. Rows
+     * are allocated as output reaches them, so a large transcript costs nothing until it fills up. Takes effect when
+     * the emulator is initialized by the first {@link #updateSize(int, int)}.
+     */
+    public void setTranscriptRows(int rows) {
+        mTranscriptRows = rows;
+        mTranscriptMemoryBudget = 0;
+    }
+
+    /**
+     * Size the transcript to fill about the given number of bytes of heap once full, instead of by a number of rows.
+     * The rows are counted from {@link TerminalBuffer#estimateTranscriptRowSize(int)} at the width of the terminal when
+     * the emulator is initialized by the first {@link #updateSize(int, int)}, and stay the same after resizing.
+     */
+    public void setTranscriptMemoryBudget(long bytes) {
+        mTranscriptMemoryBudget = bytes;
+    }
+
+    /**
+     * Start recording the output of the process with timestamps to the stream, in the format described in
+     * {@link TerminalRecorder}, stopping any previous recording. Recording happens on a separate thread and never slows
+     * down the session: if the stream cannot keep up, output is left out of the recording.
+     */
+    public void startRecording(OutputStream out) {
+        stopRecording();
+        mRecorder = new TerminalRecorder(out, mEmulator.mColumns, mEmulator.mRows, RECORDING_BUFFER_SIZE);
+    }
+
+    /** Stop recording, if recording. The stream passed to {@link #startRecording(OutputStream)} is closed. */
+    public void stopRecording() {
+        final TerminalRecorder recorder = mRecorder;
+        if (recorder != null) {
+            mRecorder = null;
+            recorder.stop();
+        }
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
     /** The terminal title as set through escape sequences or null if none set. */
     public String getTitle() {
         return (mEmulator == null) ? null : mEmulator.getTitle();
@@ -185,7 +352,20 @@ public final class TerminalSession extends TerminalOutput {
      * @param rows    The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */5000);
+        int transcriptRows = mTranscriptRows;
+        if (mTranscriptMemoryBudget > 0)
+            transcriptRows = (int) Math.min(mTranscriptMemoryBudget / TerminalBuffer.estimateTranscriptRowSize(columns), Integer.MAX_VALUE);
+        mEmulator = new TerminalEmulator(this, columns, rows, Math.max(transcriptRows, rows));
+        final TerminalEmulator emulator = mEmulator;
+        if (mScrollbackDirectory != null) {
+            try {
+                mScrollbackFile = TerminalScrollbackFile.create(mScrollbackDirectory);
+                emulator.setScrollbackFile(mScrollbackFile);
+            } catch (IOException e) {
+                Log.w(EmulatorDebug.LOG_TAG, "failed creating scrollback file, discarding old history instead", e);
+            }
+        }
+        mAppendToEmulator = emulator::append;
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mArgs, mEnv, processId, rows, columns);
@@ -193,33 +373,51 @@ public final class TerminalSession extends TerminalOutput {
 
         final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor);
 
-        new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
+        Thread readerThread = new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
             @Override
             public void run() {
                 try (InputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
+                    ByteBuffer buffer = ByteBuffer.allocate(MIN_READ_SIZE);
                     while (true) {
-                        int read = termIn.read(buffer);
+                        int read = termIn.read(buffer.array(), 0, buffer.capacity());
                         if (read == -1) return;
-                        if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+                        buffer.limit(read).position(0);
+                        final TerminalRecorder recorder = mRecorder;
+                        if (recorder != null) recorder.recordOutput(buffer.array(), 0, read);
+                        if (mEmulateInBackground) {
+                            mMetrics.recordRead(read, 0);
+                            for (int start = 0; start < read; start += BACKGROUND_APPEND_SLICE_SIZE) {
+                                buffer.limit(Math.min(read, start + BACKGROUND_APPEND_SLICE_SIZE)).position(start);
+                                final long appendStartTime = System.nanoTime();
+                                synchronized (emulator) {
+                                    emulator.append(buffer);
+                                    mMetrics.recordAppend(System.nanoTime() - appendStartTime, emulator);
+                                }
+                            }
+                            if (!postNewInputMessage(MSG_SCREEN_UPDATED)) mCoalescedWakeups.incrementAndGet();
+                        } else {
+                            if (!mProcessToTerminalIOQueue.write(buffer.array(), 0, read)) return;
+                            mMetrics.recordRead(read, mProcessToTerminalIOQueue.available());
+                            if (!postNewInputMessage(MSG_NEW_INPUT)) mCoalescedWakeups.incrementAndGet();
+                        }
+                        // Use larger reads while the process produces output faster than we consume it:
+                        if (read == buffer.capacity() && read < MAX_READ_SIZE) {
+                            buffer = ByteBuffer.allocate(2 * read);
+                        }
                     }
                 } catch (Exception e) {
                     // Ignore, just shutting down.
                 }
             }
-        }.start();
+        };
+        if (mEmulateInBackground) mParserThread = readerThread;
+        readerThread.start();
 
         new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
             @Override
             public void run() {
-                final byte[] buffer = new byte[4096];
                 try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
-                    while (true) {
-                        int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
-                        if (bytesToWrite == -1) return;
-                        termOut.write(buffer, 0, bytesToWrite);
-                    }
+                    mTerminalToProcessWriter.writeTo(termOut);
                 } catch (IOException e) {
                     // Ignore.
                 }
@@ -236,10 +434,77 @@ public final class TerminalSession extends TerminalOutput {
 
     }
 
-    /** Write data to the shell process. */
+    /**
+     * Post a {@link #MSG_NEW_INPUT} or {@link #MSG_SCREEN_UPDATED} unless one is already pending.
+     *
+     * @return true if a message was posted, false if it was coalesced into the pending one.
+     */
+    private boolean postNewInputMessage(int what) {
+        if (!mNewInputPending.compareAndSet(false, true)) return false;
+        mMainThreadHandler.sendEmptyMessage(what);
+        return true;
+    }
+
+    /**
+     * The number of times process output was picked up by an already pending main thread wakeup instead of posting a
+     * new one. Grows quickly during output floods, and stays near zero for interactive use.
+     */
+    public long getCoalescedWakeups() {
+        return mCoalescedWakeups.get();
+    }
+
+    /**
+     * Copy the I/O and emulation metrics of this session into the snapshot. Does not allocate, so it may be called
+     * periodically while profiling. Rates are computed from the difference between two snapshots.
+     */
+    public void getMetrics(TerminalMetrics.Snapshot into) {
+        mMetrics.snapshot(into);
+        into.mBytesWritten = mTerminalToProcessWriter.getWrittenBytes();
+    }
+
+    /**
+     * Write data to the shell process. Never blocks: input the process has not read yet is spooled in memory. A lone
+     * ^C, ^Z or ^\ is written ahead of any input still waiting.
+     */
     @Override
     public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+        if (mShellPid > 0) mTerminalToProcessWriter.write(data, offset, count, null);
+    }
+
+    /**
+     * Write data to the shell process like {@link #write(byte[], int, int)}, reporting backpressure for callers which
+     * produce large amounts of input, such as pastes.
+     *
+     * @param onWritten if not null, run on the main thread once the data has been written to the process. Not run if
+     *                  the process exits first.
+     * @return true if more input may be written right away, false if more input than the high-water mark (see
+     * {@link #setInputHighWaterMark(int)}) is now waiting and the caller should wait for onWritten before writing
+     * more, or if the process is not running.
+     */
+    public boolean write(byte[] data, int offset, int count, final Runnable onWritten) {
+        if (mShellPid <= 0) return false;
+        return mTerminalToProcessWriter.write(data, offset, count,
+            onWritten == null ? null : () -> mMainThreadHandler.post(onWritten));
+    }
+
+    /** Set the number of waiting input bytes from which {@link #write(byte[], int, int, Runnable)} returns false. */
+    public void setInputHighWaterMark(int highWaterMark) {
+        mTerminalToProcessWriter.setHighWaterMark(highWaterMark);
+    }
+
+    /** The number of bytes written to this session which have not been passed on to the process yet. */
+    public int getPendingInputBytes() {
+        return mTerminalToProcessWriter.getPendingBytes();
+    }
+
+    /**
+     * Wait until everything written to this session so far has been passed on to the process.
+     *
+     * @param timeoutMillis the maximum time to wait, or 0 to wait as long as it takes.
+     * @return true if all input was written, false on timeout or if the process exited first.
+     */
+    public boolean flush(long timeoutMillis) {
+        return mTerminalToProcessWriter.flush(timeoutMillis);
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -283,14 +548,41 @@ public final class TerminalSession extends TerminalOutput {
         return mEmulator;
     }
 
+    /** If terminal emulation runs on the thread reading process output, see the class documentation. */
+    public boolean isEmulatingInBackground() {
+        return mEmulateInBackground;
+    }
+
     /** Notify the {@link #mChangeCallback} that the screen has changed. */
     protected void notifyScreenUpdate() {
         mChangeCallback.onTextChanged(this);
     }
 
+    /**
+     * Notify about a screen change unless the application is in the middle of a synchronized update (DECSET 2026). Then
+     * the notification is held back until output finishing the update has been processed, or until the update times
+     * out, so that only the complete frame is drawn.
+     */
+    private void notifyScreenUpdateUnlessSynchronized() {
+        final long remainingNanos;
+        synchronized (mEmulator) {
+            remainingNanos = mEmulator.getSynchronizedOutputRemainingNanos();
+        }
+        if (remainingNanos > 0) {
+            if (!mMainThreadHandler.hasMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT)) {
+                mMainThreadHandler.sendEmptyMessageDelayed(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT, remainingNanos / 1_000_000 + 1);
+            }
+        } else {
+            mMainThreadHandler.removeMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT);
+            notifyScreenUpdate();
+        }
+    }
+
     /** Reset state for terminal emulator state. */
     public void reset(boolean erase) {
-        mEmulator.reset(erase);
+        synchronized (mEmulator) {
+            mEmulator.reset(erase);
+        }
         notifyScreenUpdate();
     }
 
@@ -312,10 +604,21 @@ public final class TerminalSession extends TerminalOutput {
             mShellExitStatus = exitStatus;
         }
 
+        stopRecording();
+
         // Stop the reader and writer threads, and close the I/O streams
-        mTerminalToProcessIOQueue.close();
+        mTerminalToProcessWriter.close();
         mProcessToTerminalIOQueue.close();
         JNI.close(mTerminalFileDescriptor);
+
+        // The unlinked scrollback file takes up space until it is closed, which may be long if the app keeps running:
+        if (mScrollbackFile != null) {
+            synchronized (mEmulator) {
+                mEmulator.setScrollbackFile(null);
+                mScrollbackFile.close();
+            }
+            mScrollbackFile = null;
+        }
     }
 
     public synchronized boolean isRunning() {
@@ -328,13 +631,21 @@ public final class TerminalSession extends TerminalOutput {
     }
 
     @Override
-    public void clipboardText(String text) {
-        mChangeCallback.onClipboardText(this, text);
+    public void clipboardText(final String text) {
+        if (Thread.currentThread() == mParserThread) {
+            mMainThreadHandler.post(() -> mChangeCallback.onClipboardText(this, text));
+        } else {
+            mChangeCallback.onClipboardText(this, text);
+        }
     }
 
     @Override
     public void onBell() {
-        mChangeCallback.onBell(this);
+        if (Thread.currentThread() == mParserThread) {
+            mMainThreadHandler.post(() -> mChangeCallback.onBell(this));
+        } else {
+            mChangeCallback.onBell(this);
+        }
     }
 
     public int getPid() {
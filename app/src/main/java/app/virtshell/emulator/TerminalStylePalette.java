@@ -0,0 +1,106 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.util.Arrays;
+
+/**
+ * The style storage shared by the rows of a {@link TerminalBuffer}.
+ * <p>
+ * Most rows, like blank rows and rows of plain output, have the same style in all columns. Such rows use one interned
+ * style run per style instead of style run arrays of their own, and only get arrays of their own once a second style is
+ * set in them. The arrays given up by rows when they are cleared are kept for reuse, so that scrolling styled output
+ * does not allocate.
+ */
+final class TerminalStylePalette {
+
+    /** The run starts of every row using an interned style run: a single run starting at column 0. Never modified. */
+    static final short[] SINGLE_RUN_STARTS = {0};
+
+    /**
+     * The most styles interned. The palette then starts over instead of keeping every style ever seen, like with true
+     * color output, and rows keep the interned runs they already use.
+     */
+    private static final int MAX_STYLES = 1024;
+    /** The size of the hash table, which is kept at most half full. A power of two. */
+    private static final int TABLE_SIZE = 2 * MAX_STYLES;
+    /** The most released arrays of each type kept for reuse. */
+    private static final int MAX_RELEASED = 16;
+
+    private final long[] mKeys = new long[TABLE_SIZE];
+    private final long[][] mRuns = new long[TABLE_SIZE][];
+    private int mStyles;
+
+    private final short[][] mReleasedStarts = new short[MAX_RELEASED][];
+    private final long[][] mReleasedStyles = new long[MAX_RELEASED][];
+    private int mReleasedStartCount, mReleasedStyleCount;
+
+    /** The interned style run with the given style, an array containing just the style. It must not be modified. */
+    long[] intern(long style) {
+        int slot = slot(style);
+        long[] run;
+        while ((run = mRuns[slot]) != null) {
+            if (mKeys[slot] == style) return run;
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        if (mStyles == MAX_STYLES) {
+            Arrays.fill(mRuns, null);
+            mStyles = 0;
+            slot = slot(style);
+        }
+        mKeys[slot] = style;
+        mRuns[slot] = run = new long[]{style};
+        mStyles++;
+        return run;
+    }
+
+    private static int slot(long style) {
+        return (int) ((style * 0x9E3779B97F4A7C15L) >>> 40) & (TABLE_SIZE - 1);
+    }
+
+    /** An array for the run starts of a row with the given capacity, reusing a released one if possible. */
+    short[] newRunStarts(int capacity) {
+        if (capacity == TerminalRow.INITIAL_STYLE_RUNS && mReleasedStartCount > 0) {
+            final short[] starts = mReleasedStarts[--mReleasedStartCount];
+            mReleasedStarts[mReleasedStartCount] = null;
+            return starts;
+        }
+        return new short[capacity];
+    }
+
+    /** An array for the run styles of a row with the given capacity, reusing a released one if possible. */
+    long[] newRunStyles(int capacity) {
+        if (capacity == TerminalRow.INITIAL_STYLE_RUNS && mReleasedStyleCount > 0) {
+            final long[] styles = mReleasedStyles[--mReleasedStyleCount];
+            mReleasedStyles[mReleasedStyleCount] = null;
+            return styles;
+        }
+        return new long[capacity];
+    }
+
+    /** Keep the style run arrays no longer used by a row for reuse, unless they are larger than usually needed. */
+    void release(short[] starts, long[] styles) {
+        if (starts.length == TerminalRow.INITIAL_STYLE_RUNS && mReleasedStartCount < MAX_RELEASED)
+            mReleasedStarts[mReleasedStartCount++] = starts;
+        if (styles.length == TerminalRow.INITIAL_STYLE_RUNS && mReleasedStyleCount < MAX_RELEASED)
+            mReleasedStyles[mReleasedStyleCount++] = styles;
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+/**
+ * Memory for the text of the frozen rows of a {@link TerminalBuffer}, handed out from large chunks instead of an array
+ * per row. Rows are frozen and discarded in about the order they scroll through the transcript, so a chunk can be
+ * garbage collected soon after the last of its rows has been discarded.
+ */
+final class TerminalTextArena {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private byte[] mChunk;
+    private int mChunkUsed;
+
+    /** Reserve memory for the given number of bytes in {@link #getChunk()}, returning the offset of the first one. */
+    int reserve(int length) {
+        if (mChunk == null || mChunkUsed + length > mChunk.length) {
+            mChunk = new byte[Math.max(CHUNK_SIZE, length)];
+            mChunkUsed = 0;
+        }
+        final int offset = mChunkUsed;
+        mChunkUsed += length;
+        return offset;
+    }
+
+    /** The chunk the latest reservation was made in. */
+    byte[] getChunk() {
+        return mChunk;
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A fixed-size ring buffer of the escape sequences most recently processed by a {@link TerminalEmulator}, for finding
+ * out which sequences a slow or misbehaving program sends. Set with {@link TerminalEmulator#setTrace(TerminalTrace)}.
+ * <p>
+ * Each sequence is stored as primitives in preallocated arrays, so recording does not allocate. Like the emulator
+ * itself a trace is not thread safe, and has to be accessed while holding the lock on the emulator.
+ */
+public final class TerminalTrace {
+
+    /** The most parameters stored for a sequence. Further parameters are counted but not kept. */
+    public static final int MAX_ARGS = 8;
+
+    /** Set in a header if the emulator did not recognize the sequence. */
+    private static final int FLAG_UNKNOWN = 1 << 2;
+
+    private final int mCapacity;
+    /** The {@link System#nanoTime()} when each sequence was processed. */
+    private final long[] mTimes;
+    /**
+     * The kind (one of {@link TerminalMetrics#ESCAPE_ESC} and so on) in the lowest two bits, {@link #FLAG_UNKNOWN},
+     * the intermediate character in bits 8-15 and the prefix character in bits 16-23 of each sequence.
+     */
+    private final int[] mHeaders;
+    private final int[] mFinalBytes;
+    private final int[] mArgCounts;
+    private final int[] mArgs;
+    /** The total number of sequences recorded, of which the last {@link #mCapacity} are kept. */
+    private long mRecorded;
+
+    public TerminalTrace(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mHeaders = new int[capacity];
+        mFinalBytes = new int[capacity];
+        mArgCounts = new int[capacity];
+        mArgs = new int[capacity * MAX_ARGS];
+    }
+
+    /**
+     * Record a sequence.
+     *
+     * @param kind          One of {@link TerminalMetrics#ESCAPE_ESC}, {@link TerminalMetrics#ESCAPE_CSI} and so on.
+     * @param prefix        A private parameter prefix like '?' in "CSI ? 25 h", or 0.
+     * @param intermediate  An intermediate character like '$' in "CSI 1 $ p", or 0.
+     * @param finalByte     The character ending the sequence.
+     * @param unknown       If the emulator did not recognize the sequence.
+     * @param args          The parameters of the sequence, -1 for an omitted parameter.
+     * @param argCount      The number of parameters.
+     */
+    void record(int kind, int prefix, int intermediate, int finalByte, boolean unknown, int[] args, int argCount) {
+        final int index = (int) (mRecorded++ % mCapacity);
+        mTimes[index] = System.nanoTime();
+        mHeaders[index] = kind | (unknown ? FLAG_UNKNOWN : 0) | (prefix & 0xFF) << 16 | (intermediate & 0xFF) << 8;
+        mFinalBytes[index] = finalByte;
+        mArgCounts[index] = argCount;
+        System.arraycopy(args, 0, mArgs, index * MAX_ARGS, Math.min(argCount, MAX_ARGS));
+    }
+
+    /** The total number of sequences recorded, including those no longer kept. */
+    public long getRecordedCount() {
+        return mRecorded;
+    }
+
+    /** The number of sequences kept, at most the capacity. */
+    public int size() {
+        return (int) Math.min(mRecorded, mCapacity);
+    }
+
+    /** Forget all recorded sequences. */
+    public void clear() {
+        mRecorded = 0;
+    }
+
+    /**
+     * Write a human readable dump of the trace: how often each kind of sequence occurs among those kept, most common
+     * first, followed by the kept sequences with the milliseconds since the oldest one.
+     */
+    public void dump(StringBuilder out) {
+        final int size = size();
+        final int oldest = (int) ((mRecorded - size) % mCapacity);
+        out.append(size).append(" of ").append(mRecorded).append(" sequences kept\n");
+
+        final Map<String, int[]> counts = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            final int index = (oldest + i) % mCapacity;
+            final String name = appendName(new StringBuilder(), index, false).toString();
+            int[] count = counts.get(name);
+            if (count == null) counts.put(name, count = new int[1]);
+            count[0]++;
+        }
+        final List<Map.Entry<String, int[]>> sorted = new ArrayList<>(counts.entrySet());
+        Collections.sort(sorted, (a, b) -> b.getValue()[0] != a.getValue()[0]
+            ? Integer.compare(b.getValue()[0], a.getValue()[0]) : a.getKey().compareTo(b.getKey()));
+        for (Map.Entry<String, int[]> entry : sorted)
+            out.append(String.format(Locale.US, "%8d  %s%n", entry.getValue()[0], entry.getKey()));
+
+        out.append('\n');
+        for (int i = 0; i < size; i++) {
+            final int index = (oldest + i) % mCapacity;
+            final double millis = (mTimes[index] - mTimes[oldest]) / 1e6;
+            out.append(String.format(Locale.US, "%12.3f  ", millis));
+            appendName(out, index, true);
+            if ((mHeaders[index] & FLAG_UNKNOWN) != 0) out.append("  (unknown)");
+            out.append('\n');
+        }
+    }
+
+    /** Append a sequence like "CSI ?25h", with or without its parameters. */
+    private StringBuilder appendName(StringBuilder out, int index, boolean withArgs) {
+        final int header = mHeaders[index];
+        final int prefix = (header >> 16) & 0xFF;
+        final int intermediate = (header >> 8) & 0xFF;
+        final int finalByte = mFinalBytes[index];
+        switch (header & 3) {
+            case TerminalMetrics.ESCAPE_CSI:
+                out.append("CSI ");
+                break;
+            case TerminalMetrics.ESCAPE_OSC:
+                out.append("OSC ");
+                break;
+            case TerminalMetrics.ESCAPE_DCS:
+                out.append("DCS ");
+                break;
+            default:
+                out.append("ESC ");
+                break;
+        }
+        if (prefix != 0) out.append((char) prefix);
+        final int argCount = mArgCounts[index];
+        if (withArgs || (header & 3) == TerminalMetrics.ESCAPE_OSC) {
+            for (int i = 0; i < Math.min(argCount, MAX_ARGS); i++) {
+                if (i > 0) out.append(';');
+                final int arg = mArgs[index * MAX_ARGS + i];
+                if (arg >= 0) out.append(arg);
+            }
+            if (argCount > MAX_ARGS) out.append(";...");
+        }
+        if (intermediate != 0) out.append((char) intermediate);
+        if (finalByte == 7 || (header & 3) == TerminalMetrics.ESCAPE_OSC || (header & 3) == TerminalMetrics.ESCAPE_DCS) {
+            // Strings are terminated by BEL or ST, and nothing but the terminator may follow the kind:
+            if (out.charAt(out.length() - 1) != ' ') out.append(' ');
+            out.append(finalByte == 7 ? "BEL" : "ST");
+        } else if (finalByte < 32 || finalByte == 127) {
+            out.append(String.format(Locale.US, "<U+%04x>", finalByte));
+        } else {
+            out.appendCodePoint(finalByte);
+        }
+        return out;
+    }
+
+}
@@ -24,8 +24,8 @@ package app.virtshell.emulator;
 
 /**
  * <p>
- * Encodes effects, foreground and background colors into a 64 bit long, which are stored for each cell in a terminal
- * row in {@link TerminalRow#mStyle}.
+ * Encodes effects, foreground and background colors into a 64 bit long, which are stored for each run of cells with the
+ * same style in a terminal row, see {@link TerminalRow#getStyle(int)}.
  * </p>
  * <p>
  * The bit layout is:
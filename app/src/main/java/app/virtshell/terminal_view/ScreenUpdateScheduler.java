@@ -0,0 +1,124 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.terminal_view;
+
+import android.view.Choreographer;
+
+/**
+ * Batches screen update requests so that an update is performed at most once per display frame, on the vsync tick
+ * following the requests.
+ * <p>
+ * With {@link #setSkipFramesDuringFloods(boolean)} enabled, frames are skipped entirely while the terminal keeps
+ * changing on every frame, except for one update every {@link #MAX_SKIPPED_NANOS}, and the final state is shown on the
+ * first frame without new output.
+ * <p>
+ * Must only be used from the main thread.
+ */
+final class ScreenUpdateScheduler implements Choreographer.FrameCallback {
+
+    /** The number of consecutive frames with new output after which output is considered a flood. */
+    private static final int FLOOD_FRAMES = 3;
+
+    /** The longest time to go without an update while skipping frames during a flood. */
+    private static final long MAX_SKIPPED_NANOS = 100_000_000L;
+
+    private final Runnable mUpdate;
+
+    private boolean mSkipFramesDuringFloods;
+
+    /** If a frame callback is posted. */
+    private boolean mFrameScheduled;
+    /** If there are requests which have not been followed by an update yet. */
+    private boolean mUpdatePending;
+    /** If there has been a request since the last frame callback. */
+    private boolean mRequestedSinceLastFrame;
+    /** The number of consecutive frames with requests. */
+    private int mBusyFrames;
+    /** The frame time of the last performed update. */
+    private long mLastUpdateFrameTimeNanos;
+
+    private long mRequestedUpdates;
+    private long mPerformedUpdates;
+
+    ScreenUpdateScheduler(Runnable update) {
+        mUpdate = update;
+    }
+
+    void setSkipFramesDuringFloods(boolean skipFramesDuringFloods) {
+        mSkipFramesDuringFloods = skipFramesDuringFloods;
+    }
+
+    /** Request an update at the next frame. */
+    void requestUpdate() {
+        mRequestedUpdates++;
+        mUpdatePending = true;
+        mRequestedSinceLastFrame = true;
+        scheduleFrame();
+    }
+
+    /** Drop any pending update, e.g. when the view is detached. */
+    void cancel() {
+        if (mFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            mFrameScheduled = false;
+        }
+        if (mUpdatePending) {
+            mUpdatePending = false;
+            mRequestedUpdates--;
+        }
+        mRequestedSinceLastFrame = false;
+        mBusyFrames = 0;
+    }
+
+    /** The number of requested updates which were merged into another one instead of being performed. */
+    long getCollapsedUpdates() {
+        return mRequestedUpdates - mPerformedUpdates - (mUpdatePending ? 1 : 0);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+
+        mBusyFrames = mRequestedSinceLastFrame ? mBusyFrames + 1 : 0;
+        mRequestedSinceLastFrame = false;
+        if (!mUpdatePending) return;
+
+        if (mSkipFramesDuringFloods && mBusyFrames > FLOOD_FRAMES
+            && frameTimeNanos - mLastUpdateFrameTimeNanos < MAX_SKIPPED_NANOS) {
+            scheduleFrame();
+            return;
+        }
+
+        mUpdatePending = false;
+        mLastUpdateFrameTimeNanos = frameTimeNanos;
+        mPerformedUpdates++;
+        mUpdate.run();
+
+        // Look at the next frame as well, so that mBusyFrames is reset if it is quiet:
+        scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled) return;
+        mFrameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+}
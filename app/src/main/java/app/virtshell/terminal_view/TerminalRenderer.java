@@ -105,7 +105,7 @@ final class TerminalRenderer {
                 selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
             }
 
-            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+            TerminalRow lineObject = screen.getRow(row);
             final char[] line = lineObject.mText;
             final int charsUsedInLine = lineObject.getSpaceUsed();
 
@@ -117,6 +117,10 @@ final class TerminalRenderer {
             boolean lastRunFontWidthMismatch = false;
             int currentCharIndex = 0;
             float measuredWidthForRun = 0.f;
+            // The style runs of the row are followed along with the columns:
+            int styleRun = 0;
+            long styleOfRun = lineObject.getStyleRunStyle(0);
+            int endOfStyleRun = lineObject.getStyleRunEnd(0);
 
             for (int column = 0; column < columns; ) {
                 final char charAtIndex = line[currentCharIndex];
@@ -126,7 +130,12 @@ final class TerminalRenderer {
                 final int codePointWcWidth = WcWidth.width(codePoint);
                 final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
                 final boolean insideSelection = column >= selx1 && column <= selx2;
-                final long style = lineObject.getStyle(column);
+                while (column >= endOfStyleRun) {
+                    styleRun++;
+                    styleOfRun = lineObject.getStyleRunStyle(styleRun);
+                    endOfStyleRun = lineObject.getStyleRunEnd(styleRun);
+                }
+                final long style = styleOfRun;
 
                 // Check if the measured text width for this code point is not the same as that expected by wcwidth().
                 // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
@@ -76,6 +76,9 @@ public final class TerminalView extends View {
 
     private TextSelectionCursorController mTextSelectionCursorController;
 
+    /** Paces {@link #onScreenUpdated()} to the display refresh rate. */
+    private final ScreenUpdateScheduler mScreenUpdateScheduler = new ScreenUpdateScheduler(this::updateScreen);
+
     /** The top row of text to display. Ranges from -activeTranscriptRows to 0. */
     int mTopRow;
     int[] mDefaultSelectors = new int[]{-1,-1,-1,-1};
@@ -174,7 +177,11 @@ public final class TerminalView extends View {
                 if (mouseTrackingAtStartOfFling) {
                     mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
                 } else {
-                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    final int transcriptRows;
+                    synchronized (mEmulator) {
+                        transcriptRows = mEmulator.getScreen().getActiveTranscriptRows();
+                    }
+                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -transcriptRows, 0);
                 }
 
                 post(new Runnable() {
@@ -370,7 +377,10 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows();
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows();
+        }
     }
 
     @Override
@@ -380,12 +390,45 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        }
     }
 
+    /**
+     * Notify the view that the terminal screen has changed. The view is updated on the next display frame, so that any
+     * number of changes between two frames results in a single update and redraw.
+     */
     public void onScreenUpdated() {
+        mScreenUpdateScheduler.requestUpdate();
+    }
+
+    /**
+     * Whether to skip drawing frames entirely while the terminal changes on every frame, as during a flood of output,
+     * instead of showing each intermediate state. The screen is still updated a few times per second.
+     */
+    public void setSkipFramesDuringFloods(boolean skipFramesDuringFloods) {
+        mScreenUpdateScheduler.setSkipFramesDuringFloods(skipFramesDuringFloods);
+    }
+
+    /** The number of {@link #onScreenUpdated()} calls which were merged into another update. */
+    public long getCollapsedScreenUpdates() {
+        return mScreenUpdateScheduler.getCollapsedUpdates();
+    }
+
+    private void updateScreen() {
         if (mEmulator == null) return;
 
+        // The scroll counter is updated by the parser thread if emulating in the background:
+        synchronized (mEmulator) {
+            updateTopRowAfterScreenUpdate();
+        }
+
+        invalidate();
+    }
+
+    private void updateTopRowAfterScreenUpdate() {
         int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
 
@@ -416,8 +459,6 @@ public final class TerminalView extends View {
         }
 
         mEmulator.clearScrollCounter();
-
-        invalidate();
         if (mAccessibilityEnabled) setContentDescription(getText());
     }
 
@@ -476,7 +517,11 @@ public final class TerminalView extends View {
                 // e.g. less, which shifts to the alt screen without mouse handling.
                 handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
             } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                final int transcriptRows;
+                synchronized (mEmulator) {
+                    transcriptRows = mEmulator.getScreen().getActiveTranscriptRows();
+                }
+                mTopRow = Math.min(0, Math.max(-transcriptRows, mTopRow + (up ? -1 : 1)));
                 if (!awakenScrollBars()) invalidate();
             }
         }
@@ -753,7 +798,9 @@ public final class TerminalView extends View {
             if (mTextSelectionCursorController != null) {
                 mTextSelectionCursorController.getSelectors(sel);
             }
-            mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            synchronized (mEmulator) {
+                mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            }
 
             // render the text selection handles
             renderTextSelection();
@@ -765,7 +812,9 @@ public final class TerminalView extends View {
     }
 
     private CharSequence getText() {
-        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        }
     }
 
     public int getCursorX(float x) {
@@ -875,6 +924,8 @@ public final class TerminalView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        mScreenUpdateScheduler.cancel();
+
         if (mTextSelectionCursorController != null) {
             // Might solve the following exception
             // android.view.WindowLeaked: Activity com.termux.app.TermuxActivity has leaked window android.widget.PopupWindow
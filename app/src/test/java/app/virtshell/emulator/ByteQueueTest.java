@@ -24,6 +24,10 @@ package app.virtshell.emulator;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public class ByteQueueTest extends TestCase {
 
 	private static void assertArrayEquals(byte[] expected, byte[] actual) {
@@ -73,4 +77,138 @@ public class ByteQueueTest extends TestCase {
 		assertEquals(0, q.read(new byte[128], false));
 	}
 
+	public void testReadAfterClose() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		q.write(new byte[]{1, 2, 3}, 0, 3);
+		q.close();
+		assertEquals(-1, q.read(new byte[10], false));
+		assertEquals(-1, q.read(new byte[10], true));
+	}
+
+	public void testPartialReads() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		q.write(new byte[]{1, 2, 3, 4, 5, 6, 7}, 0, 7);
+		byte[] arr = new byte[4];
+		assertEquals(4, q.read(arr, false));
+		assertArrayEquals(new byte[]{1, 2, 3, 4}, arr);
+		// Wrap around the end of the internal buffer:
+		q.write(new byte[]{8, 9, 10, 11, 12}, 0, 5);
+		byte[] rest = new byte[16];
+		assertEquals(8, q.read(rest, false));
+		for (int i = 0; i < 8; i++)
+			assertEquals(5 + i, rest[i]);
+		assertEquals(0, q.read(rest, false));
+	}
+
+	public void testReadInPlace() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		final ByteArrayOutputStream consumed = new ByteArrayOutputStream();
+		final int[] calls = new int[1];
+		Consumer<ByteBuffer> consumer = buffer -> {
+			calls[0]++;
+			while (buffer.hasRemaining())
+				consumed.write(buffer.get());
+		};
+		assertEquals(0, q.read(consumer, 100));
+		assertEquals(0, calls[0]);
+
+		q.write(new byte[]{1, 2, 3, 4, 5, 6, 7}, 0, 7);
+		assertEquals(5, q.read(consumer, 5));
+		assertEquals(1, calls[0]);
+		assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, consumed.toByteArray());
+
+		// The queued bytes now wrap around the end of the internal buffer, so expect two runs:
+		consumed.reset();
+		q.write(new byte[]{8, 9, 10, 11, 12}, 0, 5);
+		assertEquals(7, q.read(consumer, 100));
+		assertEquals(3, calls[0]);
+		assertArrayEquals(new byte[]{6, 7, 8, 9, 10, 11, 12}, consumed.toByteArray());
+
+		q.close();
+		assertEquals(-1, q.read(consumer, 100));
+	}
+
+	public void testBlockingReadWakesUpOnWrite() throws Exception {
+		final ByteQueue q = new ByteQueue(10);
+		final int[] result = new int[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				result[0] = q.read(new byte[10], true);
+			}
+		};
+		reader.start();
+		Thread.sleep(50);
+		q.write(new byte[]{1, 2}, 0, 2);
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals(2, result[0]);
+	}
+
+	public void testBlockingReadWakesUpOnClose() throws Exception {
+		final ByteQueue q = new ByteQueue(10);
+		final int[] result = new int[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				result[0] = q.read(new byte[10], true);
+			}
+		};
+		reader.start();
+		Thread.sleep(50);
+		q.close();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals(-1, result[0]);
+	}
+
+	public void testBlockedWriteWakesUpOnClose() throws Exception {
+		final ByteQueue q = new ByteQueue(10);
+		final boolean[] result = {true};
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				result[0] = q.write(new byte[20], 0, 20);
+			}
+		};
+		writer.start();
+		Thread.sleep(50);
+		q.close();
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		assertFalse(result[0]);
+	}
+
+	public void testConcurrentTransfer() throws Exception {
+		final ByteQueue q = new ByteQueue(61);
+		final int totalBytes = 1 << 20;
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				byte[] chunk = new byte[97];
+				int written = 0;
+				while (written < totalBytes) {
+					int length = Math.min(1 + (written % chunk.length), totalBytes - written);
+					for (int i = 0; i < length; i++)
+						chunk[i] = (byte) (written + i);
+					q.write(chunk, 0, length);
+					written += length;
+				}
+			}
+		};
+		writer.start();
+
+		byte[] readBuffer = new byte[37];
+		int read = 0;
+		while (read < totalBytes) {
+			int bytesRead = q.read(readBuffer, true);
+			for (int i = 0; i < bytesRead; i++)
+				if (readBuffer[i] != (byte) (read + i)) fail("Unexpected byte at position " + (read + i));
+			read += bytesRead;
+		}
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		assertEquals(0, q.read(readBuffer, false));
+	}
+
 }
@@ -66,6 +66,14 @@ public class ControlSequenceIntroducerTest extends TerminalTestCase {
 		// This shows that REP outputs the last emitted code point and not the one relative to the
 		// current cursor position:
 		withTerminalSized(5, 2).enterString("abcde\033[2G\033[2b\n").assertLinesAre("aeede", "     ");
+		// Repeating up to and past the end of the line wraps, or without autowrap keeps overwriting the last column:
+		withTerminalSized(3, 3).enterString("a\033[3bb").assertLinesAre("aaa", "ab ", "   ").assertLineWraps(true, false, false);
+		withTerminalSized(3, 3).enterString("a\033[2b").assertCursorAt(0, 2).enterString("b").assertLinesAre("aaa", "b  ", "   ");
+		withTerminalSized(3, 3).enterString("\033[?7la\033[5bb").assertLinesAre("aab", "   ", "   ").assertCursorAt(0, 2);
+		// Within left and right margins, with a wide character and with line drawing:
+		withTerminalSized(6, 3).enterString("\033[?69h\033[2;4s\033[2Gx\033[4b").assertLinesAre(" xxx  ", " xx   ", "      ");
+		withTerminalSized(5, 2).enterString("\u4E00\033[b").assertLinesAre("\u4E00\u4E00 ", "     ");
+		withTerminalSized(5, 2).enterString("\033(0q\033[2b").assertLinesAre("───  ", "     ");
 	}
 
 	/** CSI 3 J  Clear scrollback (xterm, libvte; non-standard). */
@@ -97,4 +97,27 @@ public class DecSetTest extends TerminalTestCase {
 		enterString("\033[?7hhij").assertLinesAre("abh", "ij ", "   ");
 	}
 
+	/** DECSET 2026, synchronized output, holds back screen updates until reset or timed out. */
+	public void testSynchronizedOutput() throws Exception {
+		withTerminalSized(3, 3);
+		assertEquals(0, mTerminal.getSynchronizedOutputRemainingNanos());
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;2$y");
+
+		enterString("\033[?2026h");
+		long remaining = mTerminal.getSynchronizedOutputRemainingNanos();
+		assertTrue(remaining > 0 && remaining <= TerminalEmulator.SYNCHRONIZED_OUTPUT_TIMEOUT_NANOS);
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;1$y");
+		enterString("\033[?2026l");
+		assertEquals(0, mTerminal.getSynchronizedOutputRemainingNanos());
+
+		enterString("\033[?2026h");
+		Thread.sleep(TerminalEmulator.SYNCHRONIZED_OUTPUT_TIMEOUT_NANOS / 1_000_000 + 10);
+		// Setting the mode again does not extend the timeout:
+		enterString("\033[?2026h");
+		assertEquals("Timed out updates should no longer be held back", 0, mTerminal.getSynchronizedOutputRemainingNanos());
+
+		enterString("\033c");
+		assertEquals(0, mTerminal.getSynchronizedOutputRemainingNanos());
+	}
+
 }
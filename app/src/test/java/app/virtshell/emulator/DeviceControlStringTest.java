@@ -61,6 +61,14 @@ public class DeviceControlStringTest extends TerminalTestCase {
 		assertCapabilityResponse("kB", "\033[Z");
 	}
 
+	public void testInvalidCapabilityNames() {
+		withTerminalSized(3, 3);
+		// Neither invalid hexadecimal nor an odd length gets a response:
+		assertEnteringStringGivesResponse("\033P+qzz\033\\", "");
+		assertEnteringStringGivesResponse("\033P+q434\033\\", "");
+		assertEnteringStringGivesResponse("\033P+qzz;436F\033\\", "\033P1+r436F=" + hexEncode("256") + "\033\\");
+	}
+
 	public void testReallyLongDeviceControlString() {
 		withTerminalSized(3, 3).enterString("\033P");
 		for (int i = 0; i < 10000; i++) {
@@ -51,4 +51,34 @@ public class HistoryTest extends TerminalTestCase {
 		enterString("LMN").assertLinesAre("111", "IJK", "LMN", "444").assertHistoryStartsWith("FGH", "CDE");
 	}
 
+	public void testHistoryRowsAreFrozen() {
+		withTerminalSized(4, 3).enterString("ab\r\n\033[31mé\033[m€\r\n\u679C\r\nxy\r\n\r\n");
+		TerminalBuffer screen = mTerminal.getScreen();
+		for (int row = -3; row < 0; row++)
+			assertTrue(screen.mLines[screen.externalToInternalRow(row)].isFrozen());
+		// Reading the rows thaws them:
+		assertLinesAre("xy  ", "    ", "    ").assertHistoryStartsWith("\u679C  ", "é€  ", "ab  ");
+		assertEquals(1, TextStyle.decodeForeColor(getStyleAt(-2, 0)));
+		assertEquals(TextStyle.COLOR_INDEX_FOREGROUND, TextStyle.decodeForeColor(getStyleAt(-2, 1)));
+		assertEquals("ab\né€\n\u679C\nxy", screen.getTranscriptText());
+
+		// Rows brought back onto the screen by resizing can be written to:
+		resize(4, 6).assertLinesAre("ab  ", "é€  ", "\u679C  ", "xy  ", "    ", "    ");
+		enterString("\033[2;4H!").assertLinesAre("ab  ", "é€ !", "\u679C  ", "xy  ", "    ", "    ");
+	}
+
+	public void testReadingHistoryKeepsFewRowsThawed() {
+		mTerminal = new TerminalEmulator(mOutput, 4, 2, 2000);
+		StringBuilder output = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			output.append(i).append("\r\n");
+		enterString(output.toString());
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertTrue(screen.getTranscriptText().startsWith("0\n1\n2\n"));
+		int thawedRows = 0;
+		for (int row = -screen.getActiveTranscriptRows(); row < 0; row++)
+			if (!screen.mLines[screen.externalToInternalRow(row)].isFrozen()) thawedRows++;
+		assertTrue("thawed rows: " + thawedRows, thawedRows > 0 && thawedRows <= 256);
+	}
+
 }
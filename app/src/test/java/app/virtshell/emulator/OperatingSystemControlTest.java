@@ -82,6 +82,25 @@ public class OperatingSystemControlTest extends TerminalTestCase {
 		assertIndexColorsMatch(TerminalColors.COLOR_SCHEME.mDefaultColors);
 	}
 
+	public void testResetColorIgnoresInvalidNumbers() throws Exception {
+		withTerminalSized(4, 4).enterString("\033]4;5;#00FF00\007").assertColor(5, 0xFF00FF00);
+		enterString("\033]104;x;300;99999999999;5\007").assertColor(5, TerminalColors.COLOR_SCHEME.mDefaultColors[5]);
+		enterString("A").assertLineIs(0, "A   ");
+	}
+
+	public void testSetTitle() {
+		withTerminalSized(4, 4).enterString("\033]0;hello\007");
+		String title = mTerminal.getTitle();
+		assertEquals("hello", title);
+		// An unchanged title is not replaced:
+		enterString("\033]2;hello\033\\");
+		assertSame(title, mTerminal.getTitle());
+		enterString("\033]2;hello world\007");
+		assertEquals("hello world", mTerminal.getTitle());
+		enterString("\033]2;\007");
+		assertEquals("", mTerminal.getTitle());
+	}
+
 	public void disabledTestSetClipboard() {
 		// Cannot run this as a unit test since Base64 is a android.util class.
 		enterString("\033]52;c;" + Base64.encodeToString("Hello, world".getBytes(), 0) + "\007");
@@ -231,4 +231,31 @@ public class ResizeTest extends TerminalTestCase {
 		resize(5, rows).assertLinesAre("ＱＲ ", "     ", "     ", "     ");
 	}
 
+	private int allocatedRows() {
+		int allocated = 0;
+		for (TerminalRow row : mTerminal.getScreen().mLines)
+			if (row != null) allocated++;
+		return allocated;
+	}
+
+	public void testResizeOnlyAllocatesUsedRows() {
+		mTerminal = new TerminalEmulator(mOutput, 4, 3, 100);
+		enterString("ab\r\ncd\033[42m");
+		assertEquals(3, allocatedRows());
+		resize(5, 3).assertLinesAre("ab   ", "cd   ", "     ");
+		assertEquals(3, allocatedRows());
+		// The blank rows exposed have the current style:
+		assertEquals(2, TextStyle.decodeBackColor(getStyleAt(2, 4)));
+		enterString("\r\n\r\nef").assertLinesAre("cd   ", "     ", "ef   ").assertHistoryStartsWith("ab   ");
+		assertEquals(4, allocatedRows());
+	}
+
+	public void testResizeBeyondSmallTranscript() {
+		mTerminal = new TerminalEmulator(mOutput, 4, 3, 3);
+		enterString("ab\r\ncd");
+		resize(4, 5).assertLinesAre("ab  ", "cd  ", "    ", "    ", "    ");
+		enterString("\r\n\r\n\r\n\r\nef").assertLinesAre("cd  ", "    ", "    ", "    ", "ef  ");
+		assertEquals(0, mTerminal.getScreen().getActiveTranscriptRows());
+	}
+
 }
@@ -121,6 +121,43 @@ public class ScrollRegionTest extends TerminalTestCase {
 		enterString("\033[3r").enterString("\033[2T").assertLinesAre("1 ", "2 ", "  ", "  ", "3 ");
 	}
 
+	public void testScrollSeveralLines() {
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r");
+		enterString("\033[2S").assertLinesAre("1 ", "4 ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[9S").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[9T").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+
+		// Without margins the lines scrolled out end up in the transcript:
+		withTerminalSized(2, 3).enterString("1\r\n2\r\n3\033[5S").assertLinesAre("  ", "  ", "  ");
+		assertHistoryStartsWith("  ", "  ", "3 ");
+	}
+
+	public void testScrollHugeCounts() {
+		withTerminalSized(2, 3).enterString("1\r\n2\r\n3\033[2147483647S").assertLinesAre("  ", "  ", "  ");
+		assertHistoryStartsWith("  ", "  ", "  ");
+		assertEquals(3, mTerminal.getScreen().getActiveTranscriptRows());
+		assertEquals(9, mTerminal.getScrollCounter());
+
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[2147483647S").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[2147483647T").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[2H\033[2147483647L").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[2H\033[2147483647M").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+	}
+
+	public void testScrollWithHorizontalMarginsUsesCurrentStyle() {
+		withTerminalSized(3, 2).enterString("ABCDEF\033[?69h\033[2s\033[42m\033[2;2H\n").assertLinesAre("AEF", "D  ");
+		assertEquals(TextStyle.COLOR_INDEX_BACKGROUND, TextStyle.decodeBackColor(getStyleAt(1, 0)));
+		assertEquals(2, TextStyle.decodeBackColor(getStyleAt(1, 1)));
+		assertEquals(2, TextStyle.decodeBackColor(getStyleAt(1, 2)));
+	}
+
+	public void testInsertAndDeleteSeveralLines() {
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[1;4r\033[2H");
+		enterString("\033[2L").assertLinesAre("1 ", "  ", "  ", "2 ", "5 ");
+		enterString("\033[3M").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		enterString("\033[4H\033[9L").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+	}
+
 	public void testScrollDownBelowScrollRegion() {
 		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5").assertLinesAre("1 ", "2 ", "3 ", "4 ", "5 ");
 		enterString("\033[1;3r"); // DECSTBM margins.
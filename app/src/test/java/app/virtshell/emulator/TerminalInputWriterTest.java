@@ -0,0 +1,161 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TerminalInputWriterTest extends TestCase {
+
+	/** An output stream which blocks in its first write until released, recording what is written. */
+	static final class BlockingOutputStream extends OutputStream {
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		int writeCalls;
+
+		@Override
+		public void write(int b) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			firstWriteStarted.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			synchronized (this) {
+				writeCalls++;
+				written.write(b, off, len);
+			}
+		}
+
+		synchronized byte[] getWritten() {
+			return written.toByteArray();
+		}
+	}
+
+	private static Thread startWriterThread(final TerminalInputWriter writer, final OutputStream out) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.writeTo(out);
+				} catch (IOException e) {
+					// Ignore.
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	public void testPriorityBytesJumpAheadAndWritesAreCoalesced() throws Exception {
+		TerminalInputWriter writer = new TerminalInputWriter(64);
+		BlockingOutputStream out = new BlockingOutputStream();
+		Thread thread = startWriterThread(writer, out);
+
+		assertTrue(writer.write(new byte[]{'a'}, 0, 1, null));
+		out.firstWriteStarted.await();
+		for (byte b : "bcd".getBytes())
+			assertTrue(writer.write(new byte[]{b}, 0, 1, null));
+		assertTrue(writer.write(new byte[]{3}, 0, 1, null));
+		assertEquals(4, writer.getPendingBytes());
+
+		out.release.countDown();
+		assertTrue(writer.flush(5000));
+		assertEquals(0, writer.getPendingBytes());
+		assertEquals("a\003bcd", new String(out.getWritten(), "US-ASCII"));
+		// The input queued during the first write went out in one more write:
+		assertEquals(2, out.writeCalls);
+
+		writer.close();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+	}
+
+	public void testControlCharactersInLongerWritesAreNotReordered() throws Exception {
+		TerminalInputWriter writer = new TerminalInputWriter(64);
+		BlockingOutputStream out = new BlockingOutputStream();
+		out.release.countDown();
+		Thread thread = startWriterThread(writer, out);
+		assertTrue(writer.write(new byte[]{'x', 3, 'y'}, 0, 3, null));
+		assertTrue(writer.flush(5000));
+		assertEquals("x\003y", new String(out.getWritten(), "US-ASCII"));
+		writer.close();
+		thread.join(5000);
+	}
+
+	public void testSpoolAndHighWaterMark() throws Exception {
+		TerminalInputWriter writer = new TerminalInputWriter(5000);
+		BlockingOutputStream out = new BlockingOutputStream();
+		Thread thread = startWriterThread(writer, out);
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		assertTrue(writer.write(data, 0, 4000, null));
+		out.firstWriteStarted.await();
+		// Does not block even though the process is not reading, but reports being above the high-water mark:
+		final CountDownLatch completed = new CountDownLatch(1);
+		assertFalse(writer.write(data, 4000, 6000, completed::countDown));
+		assertEquals(6000, writer.getPendingBytes());
+		assertEquals(1, completed.getCount());
+
+		out.release.countDown();
+		assertTrue(completed.await(5, TimeUnit.SECONDS));
+		assertEquals(0, writer.getPendingBytes());
+		byte[] written = out.getWritten();
+		assertEquals(data.length, written.length);
+		for (int i = 0; i < data.length; i++)
+			assertEquals(data[i], written[i]);
+
+		// Nothing pending, so the callback runs right away:
+		final boolean[] ran = {false};
+		writer.setHighWaterMark(1);
+		assertTrue(writer.write(new byte[0], 0, 0, () -> ran[0] = true));
+		assertTrue(ran[0]);
+
+		writer.close();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+	}
+
+	public void testClose() throws Exception {
+		TerminalInputWriter writer = new TerminalInputWriter(4);
+		assertTrue(writer.write(new byte[]{1, 2}, 0, 2, null));
+		assertFalse(writer.flush(10));
+		writer.close();
+		assertFalse(writer.write(new byte[]{1}, 0, 1, null));
+		assertFalse(writer.write(new byte[]{3}, 0, 1, null));
+		assertFalse(writer.flush(0));
+		// Returns right away without writing anything once closed:
+		writer.writeTo(new BlockingOutputStream());
+	}
+
+}
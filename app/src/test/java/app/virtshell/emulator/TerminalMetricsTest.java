@@ -0,0 +1,65 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+public class TerminalMetricsTest extends TerminalTestCase {
+
+	public void testBucket() {
+		assertEquals(0, TerminalMetrics.bucket(0));
+		assertEquals(1, TerminalMetrics.bucket(1));
+		assertEquals(2, TerminalMetrics.bucket(2));
+		assertEquals(2, TerminalMetrics.bucket(3));
+		assertEquals(13, TerminalMetrics.bucket(4096));
+		assertEquals(TerminalMetrics.HISTOGRAM_BUCKETS - 1, TerminalMetrics.bucket(Long.MAX_VALUE));
+	}
+
+	public void testEmulatorCounters() {
+		TerminalMetrics metrics = new TerminalMetrics();
+		TerminalMetrics.Snapshot snapshot = new TerminalMetrics.Snapshot();
+
+		withTerminalSized(5, 2).enterString("a\033[1mb\033]0;title\007\033Pq\033\\\033=å\r\n\r\n");
+		metrics.recordRead(10, 7);
+		metrics.recordRead(4096, 3);
+		metrics.recordAppend(3_000, mTerminal);
+		metrics.snapshot(snapshot);
+
+		assertEquals(4106, snapshot.mBytesRead);
+		assertEquals(2, snapshot.mReads);
+		assertEquals(7, snapshot.mQueueHighWater);
+		assertEquals(1, snapshot.mReadSizes[4]);
+		assertEquals(1, snapshot.mReadSizes[13]);
+		assertEquals(1, snapshot.mAppendBatches);
+		assertEquals(3_000, snapshot.mAppendNanos);
+		assertEquals(1, snapshot.mAppendMicros[2]);
+		assertEquals(28, snapshot.mCodePoints);
+		assertEquals(1, snapshot.mScrolledLines);
+		// Only ESC =, as the ESC \ string terminator is part of the device control string:
+		assertEquals(1, snapshot.mEscapeSequences[TerminalMetrics.ESCAPE_ESC]);
+		assertEquals(1, snapshot.mEscapeSequences[TerminalMetrics.ESCAPE_CSI]);
+		assertEquals(1, snapshot.mEscapeSequences[TerminalMetrics.ESCAPE_OSC]);
+		assertEquals(1, snapshot.mEscapeSequences[TerminalMetrics.ESCAPE_DCS]);
+
+		TerminalMetrics.Snapshot earlier = new TerminalMetrics.Snapshot();
+		earlier.mTimestampNanos = snapshot.mTimestampNanos - 500_000_000L;
+		assertEquals(56.0, snapshot.codePointsPerSecond(earlier), 0.001);
+		assertEquals(2.0, snapshot.scrolledLinesPerSecond(earlier), 0.001);
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+public class TerminalRecorderTest extends TestCase {
+
+	/** Decode a recording into a readable form, ignoring the timestamps. */
+	private static String decode(byte[] recording) throws IOException {
+		TerminalRecordingReader reader = new TerminalRecordingReader(new ByteArrayInputStream(recording));
+		StringBuilder result = new StringBuilder(reader.getColumns() + "x" + reader.getRows());
+		int type;
+		while ((type = reader.next()) != -1) {
+			switch (type) {
+				case TerminalRecorder.RECORD_OUTPUT:
+					result.append(" output:").append(new String(reader.getData(), 0, reader.getDataLength()));
+					break;
+				case TerminalRecorder.RECORD_RESIZE:
+					result.append(" resize:").append(reader.getResizeColumns()).append("x").append(reader.getResizeRows());
+					break;
+				case TerminalRecorder.RECORD_GAP:
+					result.append(" gap:").append(reader.getGapBytes());
+					break;
+			}
+		}
+		return result.toString();
+	}
+
+	public void testVarint() {
+		byte[] buffer = new byte[10];
+		assertEquals(1, TerminalRecorder.putVarint(buffer, 0, 0));
+		assertEquals(1, TerminalRecorder.putVarint(buffer, 0, 127));
+		assertEquals(2, TerminalRecorder.putVarint(buffer, 0, 300));
+		assertEquals((byte) 0xAC, buffer[0]);
+		assertEquals(0x02, buffer[1]);
+		assertEquals(10, TerminalRecorder.putVarint(buffer, 0, Long.MAX_VALUE | Long.MIN_VALUE));
+	}
+
+	public void testRecording() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TerminalRecorder recorder = new TerminalRecorder(out, 80, 24, 1024);
+		recorder.recordOutput("xhello".getBytes(), 1, 5);
+		recorder.recordResize(100, 30);
+		recorder.recordOutput("\033[H".getBytes(), 0, 3);
+		recorder.stop();
+		recorder.awaitStopped();
+		// Ignored after stopping:
+		recorder.recordOutput("late".getBytes(), 0, 4);
+		assertEquals("80x24 output:hello resize:100x30 output:\033[H", decode(out.toByteArray()));
+		assertEquals(0, recorder.getDroppedBytes());
+	}
+
+	public void testDroppedOutputIsRecordedAsGap() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				written.write(b, off, len);
+			}
+		};
+		TerminalRecorder recorder = new TerminalRecorder(out, 80, 24, 80);
+		byte[] data = new byte[40];
+		for (int i = 0; i < data.length; i++)
+			data[i] = 'a';
+		recorder.recordOutput(data, 0, 40);
+		// No room for this while the stream is blocked:
+		recorder.recordOutput(data, 0, 40);
+		assertEquals(40, recorder.getDroppedBytes());
+		recorder.recordOutput("b".getBytes(), 0, 1);
+		release.countDown();
+		recorder.stop();
+		recorder.awaitStopped();
+		assertEquals("80x24 output:" + new String(data) + " gap:40 output:b", decode(written.toByteArray()));
+	}
+
+	public void testReaderRejectsOtherFiles() {
+		try {
+			new TerminalRecordingReader(new ByteArrayInputStream("VSHREC\0\2".getBytes()));
+			fail("Expected an IOException for an unknown format version");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -451,4 +451,145 @@ public class TerminalRowTest extends TestCase {
 		// assertEquals(' ', line.mText[line.findStartOfColumn(COLUMNS - 1)]);
 	}
 
+	/** Filling a range should give the same row as setting each column in it. */
+	public void testFillMatchesSetChar() {
+		final int[] codePoints = {'a', 'Z', ' ', DIARESIS_CODEPOINT, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1,
+			TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1};
+		final int[] fillCodePoints = {' ', 'E', 'ö', TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_2};
+		Random random = new Random(17);
+		for (int round = 0; round < 2000; round++) {
+			TerminalRow filled = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+			TerminalRow expected = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+			int setChars = random.nextInt(2 * COLUMNS);
+			for (int i = 0; i < setChars; i++) {
+				int codePoint = codePoints[random.nextInt(codePoints.length)];
+				int column = random.nextInt(COLUMNS - 1);
+				long style = random.nextInt(4);
+				filled.setChar(column, codePoint, style);
+				expected.setChar(column, codePoint, style);
+			}
+
+			int start = random.nextInt(COLUMNS);
+			int end = (random.nextInt(4) == 0) ? COLUMNS : start + random.nextInt(COLUMNS - start + 1);
+			int codePoint = fillCodePoints[random.nextInt(fillCodePoints.length)];
+			filled.fill(start, end, codePoint, 7);
+			for (int column = start; column < end; column++)
+				expected.setChar(column, codePoint, 7);
+
+			String message = "round " + round + ", fill(" + start + ", " + end + ", " + codePoint + ")";
+			assertEquals(message, expected.getSpaceUsed(), filled.getSpaceUsed());
+			assertEquals(message, new String(expected.mText, 0, expected.getSpaceUsed()), new String(filled.mText, 0, filled.getSpaceUsed()));
+			for (int column = 0; column < COLUMNS; column++)
+				assertEquals(message, expected.getStyle(column), filled.getStyle(column));
+		}
+	}
+
+	/** Style runs should give the same styles as storing the style of each column, with runs as long as possible. */
+	public void testStyleRuns() {
+		Random random = new Random(5);
+		for (int round = 0; round < 2000; round++) {
+			TerminalRow row = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+			long[] expected = new long[COLUMNS];
+			Arrays.fill(expected, TextStyle.NORMAL);
+			int changes = random.nextInt(COLUMNS);
+			for (int i = 0; i < changes; i++) {
+				int start = random.nextInt(COLUMNS);
+				int end = Math.min(COLUMNS, start + 1 + random.nextInt(random.nextBoolean() ? 3 : COLUMNS - start));
+				long style = random.nextInt(3);
+				row.setStyle(start, end, style);
+				Arrays.fill(expected, start, end, style);
+			}
+
+			String message = "round " + round;
+			for (int column = 0; column < COLUMNS; column++)
+				assertEquals(message, expected[column], row.getStyle(column));
+			assertEquals(message, 0, row.getStyleRunStart(0));
+			assertEquals(message, COLUMNS, row.getStyleRunEnd(row.getStyleRunCount() - 1));
+			for (int run = 0; run < row.getStyleRunCount(); run++) {
+				assertTrue(message, row.getStyleRunStart(run) < row.getStyleRunEnd(run));
+				if (run > 0) assertTrue(message, row.getStyleRunStyle(run - 1) != row.getStyleRunStyle(run));
+			}
+		}
+	}
+
+	public void testCopyIntervalWithinRowCopiesStyles() {
+		row.setChar(0, 'a', 1);
+		row.setChar(1, 'b', 2);
+		row.setChar(2, 'c', 3);
+		row.copyInterval(row, 0, 3, 1);
+		assertEquals("aabc", new String(row.mText, 0, 4));
+		assertEquals(1, row.getStyle(0));
+		assertEquals(1, row.getStyle(1));
+		assertEquals(2, row.getStyle(2));
+		assertEquals(3, row.getStyle(3));
+		assertEquals(TextStyle.NORMAL, row.getStyle(4));
+	}
+
+	public void testFreezeAndThaw() {
+		TerminalTextArena arena = new TerminalTextArena();
+		row.setChar(0, 'a', 1);
+		row.setChar(1, 0xE9, 2);
+		row.freeze(arena);
+		assertTrue(row.isFrozen());
+		assertNull(row.mText);
+		assertFalse(row.isBlank());
+		assertEquals(2, row.getStyle(1));
+		row.thaw();
+		assertFalse(row.isFrozen());
+		assertLineStartsWith('a', 0xE9, ' ', ' ');
+		assertEquals(COLUMNS, row.getSpaceUsed());
+
+		// Text which does not fit in Latin-1:
+		row.setChar(2, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, 3);
+		row.setChar(4, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, 4);
+		int spaceUsed = row.getSpaceUsed();
+		row.freeze(arena);
+		row.thaw();
+		assertLineStartsWith('a', 0xE9, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, ' ');
+		assertEquals(spaceUsed, row.getSpaceUsed());
+		assertEquals(5, row.findStartOfColumn(5));
+		assertEquals(3, row.getStyle(2));
+		assertEquals(4, row.getStyle(4));
+
+		// Freezing again reuses the frozen text unless the row has been modified since thawing:
+		row.freeze(arena);
+		row.thaw();
+		assertLineStartsWith('a', 0xE9, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, ' ');
+		row.fill(0, 1, 'z', 1);
+		row.freeze(arena);
+		row.thaw();
+		assertLineStartsWith('z', 0xE9, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, ' ');
+
+		row.freeze(arena);
+		row.clear(TextStyle.NORMAL);
+		assertFalse(row.isFrozen());
+		assertTrue(row.isBlank());
+		row.freeze(arena);
+		assertTrue(row.isBlank());
+	}
+
+	public void testRowsSharingStylePalette() {
+		TerminalStylePalette palette = new TerminalStylePalette();
+		TerminalRow first = new TerminalRow(COLUMNS, 5, palette);
+		TerminalRow second = new TerminalRow(COLUMNS, 5, palette);
+		// Styling one row must not affect the other row with the same single style:
+		first.setStyle(2, 4, 6);
+		assertEquals(6, first.getStyle(3));
+		assertEquals(5, second.getStyle(3));
+		assertEquals(3, first.getStyleRunCount());
+		assertEquals(1, second.getStyleRunCount());
+
+		// The style runs of a cleared row go back to the palette and are reused by the next styled row:
+		first.clear(5);
+		assertEquals(1, first.getStyleRunCount());
+		second.setStyle(0, 1, 7);
+		first.setStyle(COLUMNS - 1, COLUMNS, 8);
+		assertEquals(7, second.getStyle(0));
+		assertEquals(5, second.getStyle(1));
+		assertEquals(5, first.getStyle(0));
+		assertEquals(8, first.getStyle(COLUMNS - 1));
+		for (int column = 0; column < COLUMNS - 1; column++)
+			assertEquals(5, first.getStyle(column));
+	}
+
 }
@@ -0,0 +1,133 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TerminalScrollbackFileTest extends TerminalTestCase {
+
+	private TerminalTestCase withScrollback(int columns, int rows) throws IOException {
+		withTerminalSized(columns, rows);
+		mTerminal.setScrollbackFile(TerminalScrollbackFile.create(new File(System.getProperty("java.io.tmpdir"))));
+		return this;
+	}
+
+	private static String numberedLines(int count) {
+		StringBuilder output = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			output.append(i).append("\r\n");
+		return output.toString();
+	}
+
+	public void testRowsDroppingOutOfHistoryAreSpilled() throws IOException {
+		// The buffer keeps three rows of history, and 64 rows are spilled per block:
+		withScrollback(4, 3).enterString(numberedLines(1000));
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(998, screen.getActiveTranscriptRows());
+		assertEquals(1001, screen.getActiveRows());
+		assertLinesAre("998 ", "999 ", "    ");
+		assertHistoryStartsWith("997 ", "996 ", "995 ", "994 ");
+		assertLineIs(-998, "0   ");
+		assertLineIs(-935, "63  ");
+		assertLineIs(-934, "64  ");
+		assertLineIs(-4, "994 ");
+		assertTrue(screen.getTranscriptText().startsWith("0\n1\n2\n"));
+		assertTrue(screen.getTranscriptText().endsWith("\n997\n998\n999"));
+		assertInvariants();
+	}
+
+	public void testSpilledRowsKeepTextStylesAndLineWrap() throws IOException {
+		withScrollback(4, 2).enterString("\033[31mé\033[m果\r\n😀abcde\r\n");
+		enterString(numberedLines(10));
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(12, screen.getActiveTranscriptRows());
+		assertLineIs(-12, "é果 ");
+		assertLineIs(-11, "😀ab");
+		assertLineIs(-10, "cde ");
+		assertEquals(1, TextStyle.decodeForeColor(screen.getRow(-12).getStyle(0)));
+		assertEquals(TextStyle.COLOR_INDEX_FOREGROUND, TextStyle.decodeForeColor(screen.getRow(-12).getStyle(1)));
+		assertTrue(screen.getRow(-11).mLineWrap);
+		assertFalse(screen.getRow(-10).mLineWrap);
+		assertTrue(screen.getTranscriptText().startsWith("é果\n😀abcde\n0\n"));
+	}
+
+	public void testSpilledRowsAreFittedToNewColumns() throws IOException {
+		withScrollback(5, 2).enterString("abcde\r\n果果\r\n");
+		enterString(numberedLines(10));
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(11, screen.getActiveTranscriptRows());
+		// The spilled rows are cut and padded instead of wrapped again, with a wide char not fitting left out:
+		resize(3, 2);
+		int oldestRow = -screen.getActiveTranscriptRows();
+		assertLineIs(oldestRow, "abc");
+		assertLineIs(oldestRow + 1, "果 ");
+		assertLineIs(oldestRow + 2, "0  ");
+		resize(6, 2);
+		oldestRow = -screen.getActiveTranscriptRows();
+		assertLineIs(oldestRow, "abcde ");
+		assertLineIs(oldestRow + 1, "果果  ");
+		assertLineIs(oldestRow + 2, "0     ");
+	}
+
+	public void testHugeScrollCountSpillsBoundedRows() throws IOException {
+		// Scrolling is capped at the screen and the buffer of six rows, so at most six rows are spilled:
+		withScrollback(4, 3).enterString("1\r\n2\r\n3\033[2147483647S").assertLinesAre("    ", "    ", "    ");
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(9, screen.getActiveTranscriptRows());
+		assertLineIs(-9, "1   ");
+		assertLineIs(-7, "3   ");
+		assertLineIs(-6, "    ");
+		assertInvariants();
+	}
+
+	public void testClosedFileIsDetached() throws IOException {
+		TerminalScrollbackFile scrollback = TerminalScrollbackFile.create(new File(System.getProperty("java.io.tmpdir")));
+		withTerminalSized(4, 3);
+		mTerminal.setScrollbackFile(scrollback);
+		enterString(numberedLines(200));
+		assertEquals(195, scrollback.getRowCount());
+
+		mTerminal.setScrollbackFile(null);
+		scrollback.close();
+		assertEquals(0, scrollback.getRowCount());
+		assertFalse(scrollback.append(mTerminal.getScreen().getRow(0)));
+		assertEquals(3, mTerminal.getScreen().getActiveTranscriptRows());
+		assertHistoryStartsWith("197 ", "196 ", "195 ");
+
+		// The history is only kept in memory from now on:
+		enterString(numberedLines(10));
+		assertEquals(3, mTerminal.getScreen().getActiveTranscriptRows());
+		assertLinesAre("8   ", "9   ", "    ");
+		assertInvariants();
+	}
+
+	public void testClearingHistoryClearsSpilledRows() throws IOException {
+		withScrollback(4, 3).enterString(numberedLines(200));
+		enterString("\033[3J");
+		assertEquals(0, mTerminal.getScreen().getActiveTranscriptRows());
+		enterString(numberedLines(100));
+		assertEquals(100, mTerminal.getScreen().getActiveTranscriptRows());
+		assertLineIs(-100, "198 ");
+		assertLineIs(-99, "199 ");
+		assertLineIs(-98, "0   ");
+	}
+
+}
@@ -23,6 +23,9 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package app.virtshell.emulator;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 public class TerminalTest extends TerminalTestCase {
 
@@ -271,9 +274,15 @@ public class TerminalTest extends TerminalTestCase {
 		assertEquals(0xFFFF00FF, TerminalColors.parse("rgb:F/0/F"));
 		assertEquals(0xFF0000FA, TerminalColors.parse("rgb:00/00/FA"));
 		assertEquals(0xFF53186f, TerminalColors.parse("rgb:53/18/6f"));
+		assertEquals(0xFF1111FF, TerminalColors.parse("rgb:111/111/fff"));
+		assertEquals(0xFF0100FF, TerminalColors.parse("rgb:0101/0000/ffff"));
+		assertEquals(0xFF53186f, TerminalColors.parse("x#53186f;", 1, 8));
 
 		assertEquals(0, TerminalColors.parse("invalid_0000FA"));
 		assertEquals(0, TerminalColors.parse("#3456"));
+		assertEquals(0, TerminalColors.parse("#"));
+		assertEquals(0, TerminalColors.parse("rgb:1/2/x"));
+		assertEquals(0, TerminalColors.parse("#1111122222333333"));
 	}
 
 	/** The ncurses library still uses this. */
@@ -316,4 +325,63 @@ public class TerminalTest extends TerminalTestCase {
 		withTerminalSized(11, 2).enterString("01234567890\033[44m\r\tXX").assertLinesAre("01234567XX0", "           ");
 	}
 
+	public void testAppendByteBuffer() {
+		byte[] bytes = "xx\033[1mab\u00e5\r\ncdxx".getBytes(StandardCharsets.UTF_8);
+		// A heap buffer slice with an array offset, with the escape sequence and UTF-8 split between appends:
+		ByteBuffer heap = ByteBuffer.wrap(bytes, 1, bytes.length - 2).slice();
+		heap.position(1).limit(4);
+		withTerminalSized(4, 2);
+		mTerminal.append(heap);
+		assertEquals(4, heap.position());
+		heap.limit(8);
+		mTerminal.append(heap);
+		heap.limit(heap.capacity() - 1);
+		mTerminal.append(heap);
+		assertLinesAre("ab\u00e5 ", "cd  ");
+		assertEffectAttributesSet(effectLine(TextStyle.CHARACTER_ATTRIBUTE_BOLD, TextStyle.CHARACTER_ATTRIBUTE_BOLD,
+			TextStyle.CHARACTER_ATTRIBUTE_BOLD, 0), effectLine(TextStyle.CHARACTER_ATTRIBUTE_BOLD,
+			TextStyle.CHARACTER_ATTRIBUTE_BOLD, 0, 0));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip().position(2);
+		withTerminalSized(4, 2);
+		mTerminal.append(direct);
+		assertEquals(bytes.length, direct.position());
+		assertLinesAre("ab\u00e5 ", "cdxx");
+	}
+
+	/** Appending text through the bulk printable ASCII path should give the same result as one code point at a time. */
+	public void testPrintableAsciiFastPathMatchesSlowPath() {
+		String[] fragments = {"a", "bcd", "efghijklmnop", "\r", "\n", "\033[D", "\t", "\033[1m", "\033[0m", "\033[32m",
+			"\033[4h", "\033[4l", "\033[?7l", "\033[?7h", "\033(0", "\033(B", "\016", "\017", "\033[2;5r",
+			"\033[?69h\033[3;7s", "\033[?69l", "\033[3;6H", "\033[10G", "\033[3b", "\u00e5", "\u6f22", "\u0301",
+			"\033[2K", "\033[1;1H"};
+		Random random = new Random(42);
+		for (int round = 0; round < 200; round++) {
+			TerminalEmulator fast = new TerminalEmulator(new MockTerminalOutput(), 7, 4, 10);
+			TerminalEmulator slow = new TerminalEmulator(new MockTerminalOutput(), 7, 4, 10);
+			StringBuilder input = new StringBuilder();
+			for (int i = 0; i < 30; i++) {
+				input.append(fragments[random.nextInt(fragments.length)]);
+				byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+				fast.append(ByteBuffer.wrap(bytes));
+				// Direct buffers are decoded one byte at a time:
+				ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+				direct.put(bytes).flip();
+				slow.append(direct);
+				input.setLength(0);
+
+				String context = "Round " + round + ", step " + i;
+				assertEquals(context, slow.getCursorRow(), fast.getCursorRow());
+				assertEquals(context, slow.getCursorCol(), fast.getCursorCol());
+				assertEquals(context, slow.getScreen().getTranscriptText(), fast.getScreen().getTranscriptText());
+				for (int row = -slow.getScreen().getActiveTranscriptRows(); row < 4; row++) {
+					assertEquals(context, slow.getScreen().getLineWrap(row), fast.getScreen().getLineWrap(row));
+					for (int column = 0; column < 7; column++)
+						assertEquals(context, slow.getScreen().getStyleAt(row, column), fast.getScreen().getStyleAt(row, column));
+				}
+			}
+		}
+	}
+
 }
@@ -150,9 +150,13 @@ public abstract class TerminalTestCase extends TestCase {
 		TerminalRow[] lines = screen.mLines;
 
 		Set<LineWrapper> linesSet = new HashSet<>();
+		TerminalTextArena arena = new TerminalTextArena();
 		for (int i = 0; i < lines.length; i++) {
 			if (lines[i] == null) continue;
 			assertTrue("Line exists at multiple places: " + i, linesSet.add(new LineWrapper(lines[i])));
+			// The text of rows frozen in the transcript is checked as thawed, and frozen again afterwards:
+			boolean frozen = lines[i].isFrozen();
+			lines[i].thaw();
 			char[] text = lines[i].mText;
 			int usedChars = lines[i].getSpaceUsed();
 			int currentColumn = 0;
@@ -174,6 +178,7 @@ public abstract class TerminalTestCase extends TestCase {
 			}
 			assertEquals("Line whose width does not match screens. line=" + new String(lines[i].mText, 0, lines[i].getSpaceUsed()),
 					screen.mColumns, currentColumn);
+			if (frozen) lines[i].freeze(arena);
 		}
 
 		assertEquals("The alt buffer should have have no history", mTerminal.mAltBuffer.mTotalRows, mTerminal.mAltBuffer.mScreenRows);
@@ -185,7 +190,7 @@ public abstract class TerminalTestCase extends TestCase {
 	}
 
 	protected void assertLineIs(int line, String expected) {
-		TerminalRow l = mTerminal.getScreen().allocateFullLineIfNecessary(mTerminal.getScreen().externalToInternalRow(line));
+		TerminalRow l = mTerminal.getScreen().getRow(line);
 		char[] chars = l.mText;
 		int textLen = l.getSpaceUsed();
 		if (textLen != expected.length()) fail("Expected '" + expected + "' (len=" + expected.length() + "), was='"
@@ -220,7 +225,7 @@ public abstract class TerminalTestCase extends TestCase {
 	}
 
 	protected TerminalTestCase assertLineStartsWith(int line, int... codePoints) {
-		char[] chars = mTerminal.getScreen().mLines[mTerminal.getScreen().externalToInternalRow(line)].mText;
+		char[] chars = mTerminal.getScreen().allocateFullLineIfNecessary(mTerminal.getScreen().externalToInternalRow(line)).mText;
 		int charIndex = 0;
 		for (int i = 0; i < codePoints.length; i++) {
 			int lineCodePoint = chars[charIndex++];
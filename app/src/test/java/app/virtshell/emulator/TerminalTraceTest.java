@@ -0,0 +1,71 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+public class TerminalTraceTest extends TerminalTestCase {
+
+	/** The sequences in a dump of the trace, without the summary and timestamps. */
+	private static String sequences(TerminalTrace trace) {
+		StringBuilder dump = new StringBuilder();
+		trace.dump(dump);
+		String[] parts = dump.toString().split("\n\n", 2);
+		StringBuilder result = new StringBuilder();
+		for (String line : parts[1].split("\n")) {
+			if (result.length() > 0) result.append(", ");
+			result.append(line.trim().split("  ", 2)[1]);
+		}
+		return result.toString();
+	}
+
+	public void testTrace() {
+		withTerminalSized(5, 5);
+		TerminalTrace trace = new TerminalTrace(16);
+		mTerminal.setTrace(trace);
+		enterString("\033[1;31mA\033[m\033[?25l\033(0\033]2;title\007\033]52;c;?\033\\\033P$q\"p\033\\\033[?9999h\033[>c");
+		assertEquals("CSI 1;31m, CSI m, CSI ?25l, ESC (0, OSC 2 BEL, OSC 52 ST, DCS $q ST, CSI ?9999h  (unknown), CSI >c",
+			sequences(trace));
+		assertEquals(9, trace.getRecordedCount());
+		mOutput.getOutputAndClear();
+
+		mTerminal.setTrace(null);
+		enterString("\033[H");
+		assertEquals(9, trace.getRecordedCount());
+	}
+
+	public void testSummaryAndWrapAround() {
+		withTerminalSized(5, 5);
+		TerminalTrace trace = new TerminalTrace(3);
+		mTerminal.setTrace(trace);
+		enterString("\033[1m\033[H\033[2;2H\033[3;3H\033[0m");
+		assertEquals(5, trace.getRecordedCount());
+		assertEquals(3, trace.size());
+		assertEquals("CSI 2;2H, CSI 3;3H, CSI 0m", sequences(trace));
+
+		StringBuilder dump = new StringBuilder();
+		trace.dump(dump);
+		assertTrue(dump.toString(), dump.toString().startsWith("3 of 5 sequences kept\n       2  CSI H\n       1  CSI m\n\n"));
+
+		trace.clear();
+		assertEquals(0, trace.size());
+		enterString("\0337");
+		assertEquals("ESC 7", sequences(trace));
+	}
+
+}
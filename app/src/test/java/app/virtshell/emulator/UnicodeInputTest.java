@@ -145,6 +145,43 @@ public class UnicodeInputTest extends TerminalTestCase {
 		// so should be replaced with the replacement char U+FFFD.
 		withTerminalSized(5, 5).mTerminal.append(new byte[]{(byte) 0xc0, (byte) 0xa0, 'Y'}, 3);
 		assertLineIs(0, "\uFFFDY   ");
+		// U+07FF encoded with three bytes:
+		withTerminalSized(5, 5).mTerminal.append(new byte[]{(byte) 0xe0, (byte) 0x9f, (byte) 0xbf, 'Y'}, 4);
+		assertLineIs(0, "\uFFFDY   ");
+	}
+
+	public void testSequencesSplitBetweenAppends() {
+		byte[] input = new byte[]{
+				(byte) 0x61, (byte) 0xF1, (byte) 0x80, (byte) 0x80, (byte) 0xe1, (byte) 0x80, (byte) 0xc2, (byte) 0x62,
+				(byte) 0x80, (byte) 0x63, (byte) 0x80, (byte) 0xbf, (byte) 0x64, (byte) 0xc3, (byte) 0xa5, (byte) 0xe6,
+				(byte) 0x9e, (byte) 0x9d, (byte) 0xf0, (byte) 0x9f, (byte) 0x98, (byte) 0x80, (byte) 0xed, (byte) 0xa0,
+				(byte) 0x80, (byte) 0xc2, (byte) 0x9b, (byte) 0x65
+		};
+		withTerminalSized(30, 2);
+		mTerminal.append(input, input.length);
+		String expected = mTerminal.getScreen().getTranscriptText();
+		assertEquals("a\uFFFD\uFFFD\uFFFDb\uFFFDc\uFFFD\uFFFDd\u00e5\u679d\ud83d\ude00\uFFFDe", expected);
+
+		// The same when decoded one byte at a time or split anywhere:
+		for (int split = 0; split <= input.length; split++) {
+			withTerminalSized(30, 2);
+			mTerminal.append(input, split);
+			byte[] rest = new byte[input.length - split];
+			System.arraycopy(input, split, rest, 0, rest.length);
+			mTerminal.append(rest, rest.length);
+			assertEquals("Split at " + split, expected, mTerminal.getScreen().getTranscriptText());
+		}
+		withTerminalSized(30, 2);
+		for (byte b : input) mTerminal.append(new byte[]{b}, 1);
+		assertEquals(expected, mTerminal.getScreen().getTranscriptText());
+	}
+
+	public void testAssignedCodePoints() {
+		for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT + 1; codePoint++) {
+			int type = codePoint > Character.MAX_CODE_POINT ? Character.UNASSIGNED : Character.getType(codePoint);
+			boolean assigned = type != Character.UNASSIGNED && type != Character.SURROGATE;
+			if (assigned != TerminalEmulator.isAssignedCodePoint(codePoint)) fail("Code point " + codePoint);
+		}
 	}
 
 	public void testWideCharacterWithoutWrapping() throws Exception {
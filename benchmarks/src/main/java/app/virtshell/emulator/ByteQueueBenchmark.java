@@ -0,0 +1,158 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lock-free {@link ByteQueue} against the previous monitor based {@link SynchronizedByteQueue}.
+ * <p>
+ * Each invocation pushes {@link #TRANSFER_SIZE} bytes through a 4096 byte queue - the size used by the
+ * terminal session - in chunks of {@link #chunkSize} bytes, with a separate consumer thread draining it the same
+ * way the main thread drains the pty output. Small chunks model interactive echo, 4 KiB chunks model a flood of
+ * serial console output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteQueueBenchmark {
+
+    static final int TRANSFER_SIZE = 1024 * 1024;
+
+    /** Minimal common interface so that both implementations are called the same way. */
+    interface Queue {
+        int read(byte[] buffer, boolean block);
+
+        boolean write(byte[] buffer, int offset, int length);
+
+        void close();
+    }
+
+    @Param({"lockfree", "synchronized"})
+    public String implementation;
+
+    @Param({"16", "4096"})
+    public int chunkSize;
+
+    private Queue mQueue;
+    private Thread mConsumer;
+    private byte[] mChunk;
+    private volatile long mBytesConsumed;
+    private long mBytesProduced;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (implementation.equals("lockfree")) {
+            final ByteQueue queue = new ByteQueue(4096);
+            mQueue = new Queue() {
+                @Override
+                public int read(byte[] buffer, boolean block) {
+                    return queue.read(buffer, block);
+                }
+
+                @Override
+                public boolean write(byte[] buffer, int offset, int length) {
+                    return queue.write(buffer, offset, length);
+                }
+
+                @Override
+                public void close() {
+                    queue.close();
+                }
+            };
+        } else {
+            final SynchronizedByteQueue queue = new SynchronizedByteQueue(4096);
+            mQueue = new Queue() {
+                @Override
+                public int read(byte[] buffer, boolean block) {
+                    return queue.read(buffer, block);
+                }
+
+                @Override
+                public boolean write(byte[] buffer, int offset, int length) {
+                    return queue.write(buffer, offset, length);
+                }
+
+                @Override
+                public void close() {
+                    queue.close();
+                }
+            };
+        }
+
+        mChunk = new byte[chunkSize];
+        for (int i = 0; i < chunkSize; i++)
+            mChunk[i] = (byte) ('a' + (i % 26));
+        mBytesConsumed = mBytesProduced = 0;
+
+        mConsumer = new Thread("ByteQueueBenchmarkConsumer") {
+            @Override
+            public void run() {
+                final byte[] receiveBuffer = new byte[4096];
+                while (true) {
+                    int read = mQueue.read(receiveBuffer, true);
+                    if (read == -1) return;
+                    mBytesConsumed += read;
+                }
+            }
+        };
+        mConsumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mQueue.close();
+        mConsumer.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSFER_SIZE)
+    public long transfer() {
+        final Queue queue = mQueue;
+        final byte[] chunk = mChunk;
+        for (int written = 0; written < TRANSFER_SIZE; written += chunk.length)
+            queue.write(chunk, 0, chunk.length);
+        mBytesProduced += TRANSFER_SIZE;
+
+        // Only count the transfer as done when the consumer has seen all of it:
+        while (mBytesConsumed < mBytesProduced)
+            Thread.yield();
+        return mBytesConsumed;
+    }
+
+}
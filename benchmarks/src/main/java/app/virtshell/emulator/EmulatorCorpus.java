@@ -0,0 +1,154 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic process output for the emulator benchmarks. Each corpus is generated from a fixed seed, so that results
+ * are comparable between runs and changes, and cut to exactly {@link #SIZE} bytes.
+ */
+final class EmulatorCorpus {
+
+    /** The size of every corpus in bytes. */
+    static final int SIZE = 1024 * 1024;
+
+    /** The screen size the corpora are generated for. */
+    static final int COLUMNS = 80, ROWS = 24;
+
+    /** The names accepted by {@link #generate(String)}, also used as JMH parameter values. */
+    static final String ASCII_LOG = "ascii-log";
+    static final String SGR_TRUECOLOR = "sgr-truecolor";
+    static final String CJK_EMOJI = "cjk-emoji";
+    static final String TUI_REDRAW = "tui-redraw";
+    static final String SCROLL_REGION = "scroll-region";
+    static final String WIDE_LINES = "wide-lines";
+    static final String CONTROL_SEQUENCES = "control-sequences";
+
+    private static final String[] WORDS = {"request", "worker", "queue", "flushed", "connection", "accepted", "closed",
+        "timeout", "retry", "cache", "miss", "hit", "GET", "POST", "/api/v1/items", "200", "404", "503", "user", "session"};
+
+    private EmulatorCorpus() {
+    }
+
+    static byte[] generate(String name) {
+        Random random = new Random(name.hashCode());
+        StringBuilder out = new StringBuilder(SIZE + 4096);
+        int line = 0;
+        if (name.equals(SCROLL_REGION)) out.append("\033[2J\033[2;").append(ROWS - 1).append('r');
+        while (out.length() < SIZE) {
+            switch (name) {
+                case ASCII_LOG:
+                    // A typical service log, plain ASCII with a newline per line.
+                    appendLogLine(out, random, line);
+                    out.append("\r\n");
+                    break;
+                case SGR_TRUECOLOR:
+                    // Syntax highlighted or gradient output: a truecolor SGR every few characters.
+                    for (int column = 0; column < COLUMNS; column += 4) {
+                        out.append("\033[").append(random.nextInt(8) == 0 ? "1;" : "").append("38;2;").append(random.nextInt(256))
+                            .append(';').append(random.nextInt(256)).append(';').append(random.nextInt(256)).append("m");
+                        if (random.nextInt(4) == 0) {
+                            out.append("\033[48;2;").append(random.nextInt(256)).append(';').append(random.nextInt(256)).append(';')
+                                .append(random.nextInt(256)).append('m');
+                        }
+                        out.append(WORDS[random.nextInt(WORDS.length)], 0, 3).append(' ');
+                    }
+                    out.append("\033[0m\r\n");
+                    break;
+                case CJK_EMOJI:
+                    // Wide characters, some of them outside the BMP, mixed with ASCII.
+                    for (int column = 0; column < COLUMNS - 2; ) {
+                        int kind = random.nextInt(8);
+                        if (kind < 5) {
+                            out.appendCodePoint(0x4E00 + random.nextInt(0x5000));
+                            column += 2;
+                        } else if (kind < 6) {
+                            out.appendCodePoint(0x1F600 + random.nextInt(0x50));
+                            column += 2;
+                        } else {
+                            out.append((char) ('a' + random.nextInt(26)));
+                            column++;
+                        }
+                    }
+                    out.append("\r\n");
+                    break;
+                case TUI_REDRAW:
+                    // A full screen application such as htop or vim redrawing fields at absolute positions.
+                    for (int row = 1; row <= ROWS; row++) {
+                        out.append("\033[").append(row).append(";1H");
+                        if (row == 1 || row == ROWS) {
+                            out.append("\033[7m");
+                            appendLogLine(out, random, line);
+                            out.append("\033[K\033[27m");
+                        } else if (random.nextBoolean()) {
+                            out.append("\033[3").append(1 + random.nextInt(7)).append('m').append(String.format("%5d", random.nextInt(99999)))
+                                .append("\033[39m ").append(WORDS[random.nextInt(WORDS.length)]).append("\033[K");
+                        }
+                    }
+                    out.append("\033[").append(1 + random.nextInt(ROWS)).append(';').append(1 + random.nextInt(COLUMNS)).append('H');
+                    break;
+                case SCROLL_REGION:
+                    // A pager or chat window scrolling inside margins, with an occasional reverse index at the top.
+                    out.append("\033[").append(ROWS - 1).append(";1H");
+                    appendLogLine(out, random, line);
+                    out.append("\r\n");
+                    if (random.nextInt(16) == 0) out.append("\033[2;1H\033M");
+                    break;
+                case WIDE_LINES:
+                    // Lines much longer than the screen is wide, which wrap several times.
+                    int words = 40 + random.nextInt(120);
+                    for (int i = 0; i < words; i++)
+                        out.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                    out.append("\r\n");
+                    break;
+                case CONTROL_SEQUENCES:
+                    // A prompt or status line updater, which is mostly cheap control sequences and little text, so
+                    // that parsing them dominates.
+                    out.append("\033[?25l\0337\033[").append(1 + random.nextInt(ROWS)).append(';')
+                        .append(1 + random.nextInt(COLUMNS)).append('H');
+                    for (int i = 0; i < 8; i++) {
+                        out.append("\033[").append(1 + random.nextInt(9)).append("ABCD".charAt(random.nextInt(4)));
+                        if (random.nextInt(4) == 0) out.append("\033[").append(random.nextInt(3)).append('K');
+                        out.append(WORDS[random.nextInt(WORDS.length)], 0, 1);
+                    }
+                    out.append("\033[").append(1 + random.nextInt(6)).append(" q\033]2;").append(WORDS[line % WORDS.length])
+                        .append("\007\0338\033[?25h");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown corpus: " + name);
+            }
+            line++;
+        }
+        return Arrays.copyOf(out.toString().getBytes(StandardCharsets.UTF_8), SIZE);
+    }
+
+    private static void appendLogLine(StringBuilder out, Random random, int line) {
+        out.append("2021-03-01 12:").append(10 + line / 600 % 50).append(':').append(10 + line / 10 % 50).append('.')
+            .append(100 + line % 900).append(" INFO [worker-").append(random.nextInt(16)).append("] ");
+        int words = 3 + random.nextInt(5);
+        for (int i = 0; i < words; i++)
+            out.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        out.append("in ").append(random.nextInt(1000)).append(" ms");
+    }
+
+}
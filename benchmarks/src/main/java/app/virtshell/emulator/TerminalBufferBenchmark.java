@@ -0,0 +1,99 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations on a {@link TerminalBuffer} with a full transcript of {@link #transcriptRows} rows of wrapped
+ * {@link EmulatorCorpus#WIDE_LINES} output: resizing, which reflows all of it when the width changes, and extracting
+ * text for selection and sharing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TerminalBufferBenchmark {
+
+    @Param({"500", "5000", "20000"})
+    public int transcriptRows;
+
+    private TerminalEmulator mEmulator;
+    private boolean mNarrow;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEmulator = new TerminalEmulator(new TerminalReplay.CountingTerminalOutput(), EmulatorCorpus.COLUMNS,
+            EmulatorCorpus.ROWS, transcriptRows);
+        byte[] input = EmulatorCorpus.generate(EmulatorCorpus.WIDE_LINES);
+        while (mEmulator.getScreen().getActiveTranscriptRows() < transcriptRows - EmulatorCorpus.ROWS)
+            mEmulator.append(input, input.length);
+    }
+
+    /** Alternate between two widths, so that every invocation reflows the transcript. */
+    @Benchmark
+    public int resizeColumns() {
+        mNarrow = !mNarrow;
+        mEmulator.resize(mNarrow ? EmulatorCorpus.COLUMNS - 7 : EmulatorCorpus.COLUMNS, EmulatorCorpus.ROWS);
+        return mEmulator.getCursorRow();
+    }
+
+    /** Alternate between two heights with the same width, which does not need a reflow. */
+    @Benchmark
+    public int resizeRows() {
+        mNarrow = !mNarrow;
+        mEmulator.resize(EmulatorCorpus.COLUMNS, mNarrow ? EmulatorCorpus.ROWS - 7 : EmulatorCorpus.ROWS);
+        return mEmulator.getCursorRow();
+    }
+
+    @Benchmark
+    public String getTranscriptText() {
+        return mEmulator.getScreen().getTranscriptText();
+    }
+
+    /** Select the visible screen, as when long pressing and dragging over it. */
+    @Benchmark
+    public String getSelectedTextOfScreen() {
+        return mEmulator.getSelectedText(0, 0, EmulatorCorpus.COLUMNS - 1, EmulatorCorpus.ROWS - 1);
+    }
+
+    /** Select everything from the top of the transcript down to the cursor. */
+    @Benchmark
+    public String getSelectedTextOfTranscript() {
+        TerminalBuffer screen = mEmulator.getScreen();
+        return mEmulator.getSelectedText(0, -screen.getActiveTranscriptRows(), EmulatorCorpus.COLUMNS - 1, mEmulator.getCursorRow());
+    }
+
+}
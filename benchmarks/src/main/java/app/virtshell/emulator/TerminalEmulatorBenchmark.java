@@ -0,0 +1,81 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link TerminalEmulator#append(ByteBuffer)} in bytes per second for each {@link EmulatorCorpus}.
+ * <p>
+ * The corpus is fed in chunks of {@link #CHUNK_SIZE} bytes, the size the session drains the pty output in, into an
+ * emulator which is kept between invocations so that the transcript is full as it would be in a long running session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TerminalEmulatorBenchmark {
+
+    static final int CHUNK_SIZE = 4096;
+
+    @Param({EmulatorCorpus.ASCII_LOG, EmulatorCorpus.SGR_TRUECOLOR, EmulatorCorpus.CJK_EMOJI, EmulatorCorpus.TUI_REDRAW,
+        EmulatorCorpus.SCROLL_REGION, EmulatorCorpus.WIDE_LINES, EmulatorCorpus.CONTROL_SEQUENCES})
+    public String corpus;
+
+    private TerminalEmulator mEmulator;
+    private ByteBuffer mInput;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEmulator = new TerminalEmulator(new TerminalReplay.CountingTerminalOutput(), EmulatorCorpus.COLUMNS,
+            EmulatorCorpus.ROWS, TerminalReplay.TRANSCRIPT_ROWS);
+        mInput = ByteBuffer.wrap(EmulatorCorpus.generate(corpus));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EmulatorCorpus.SIZE)
+    public int append() {
+        final TerminalEmulator emulator = mEmulator;
+        final ByteBuffer input = mInput;
+        for (int offset = 0; offset < EmulatorCorpus.SIZE; offset += CHUNK_SIZE) {
+            input.limit(Math.min(offset + CHUNK_SIZE, EmulatorCorpus.SIZE)).position(offset);
+            emulator.append(input);
+        }
+        return emulator.getCursorRow();
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Replays recordings made by {@link TerminalRecorder} into a headless {@link TerminalEmulator}.
+ * <p>
+ * A recording is loaded into memory first, so that only the emulator is measured. It is then fed to
+ * {@link TerminalEmulator#append(ByteBuffer)} either as fast as possible, to measure throughput, or at the speed it
+ * was recorded at, to see how far the emulator falls behind a real session. Each replay reports the throughput, the
+ * bytes allocated per megabyte of output and a checksum of the final transcript and screen, so that changes to the
+ * parser or the buffer can be checked against real traces for both speed and correctness.
+ * <p>
+ * Run with "./gradlew :benchmarks:replay -PreplayArgs='[--realtime] [--iterations N] recording...'".
+ */
+public final class TerminalReplay {
+
+    /** The transcript size used by {@link TerminalSession}. */
+    static final int TRANSCRIPT_ROWS = 5000;
+
+    /** A recording held in memory, with all output records concatenated into one array. */
+    public static final class Recording {
+
+        final String mName;
+        final int mColumns, mRows;
+        /** The output of all output records, back to back. */
+        final byte[] mOutput;
+        final int mOutputLength;
+        /** For each record: its type, time since the previous record and two values depending on the type. */
+        final int[] mTypes;
+        final long[] mDeltaMicros;
+        /** The length of the output for output records, the new size for resizes and the dropped bytes for gaps. */
+        final long[] mFirst, mSecond;
+        final int mRecords;
+
+        private Recording(String name, int columns, int rows, byte[] output, int outputLength, int[] types,
+                          long[] deltaMicros, long[] first, long[] second, int records) {
+            mName = name;
+            mColumns = columns;
+            mRows = rows;
+            mOutput = output;
+            mOutputLength = outputLength;
+            mTypes = types;
+            mDeltaMicros = deltaMicros;
+            mFirst = first;
+            mSecond = second;
+            mRecords = records;
+        }
+
+        public static Recording load(String name, InputStream in) throws IOException {
+            try (TerminalRecordingReader reader = new TerminalRecordingReader(in)) {
+                byte[] output = new byte[64 * 1024];
+                int outputLength = 0;
+                int[] types = new int[1024];
+                long[] deltaMicros = new long[types.length], first = new long[types.length], second = new long[types.length];
+                int records = 0;
+                int type;
+                while ((type = reader.next()) != -1) {
+                    if (records == types.length) {
+                        types = Arrays.copyOf(types, 2 * records);
+                        deltaMicros = Arrays.copyOf(deltaMicros, 2 * records);
+                        first = Arrays.copyOf(first, 2 * records);
+                        second = Arrays.copyOf(second, 2 * records);
+                    }
+                    types[records] = type;
+                    deltaMicros[records] = reader.getDeltaMicros();
+                    switch (type) {
+                        case TerminalRecorder.RECORD_OUTPUT:
+                            int length = reader.getDataLength();
+                            if (outputLength + length > output.length)
+                                output = Arrays.copyOf(output, Math.max(outputLength + length, 2 * output.length));
+                            System.arraycopy(reader.getData(), 0, output, outputLength, length);
+                            outputLength += length;
+                            first[records] = length;
+                            break;
+                        case TerminalRecorder.RECORD_RESIZE:
+                            first[records] = reader.getResizeColumns();
+                            second[records] = reader.getResizeRows();
+                            break;
+                        case TerminalRecorder.RECORD_GAP:
+                            first[records] = reader.getGapBytes();
+                            break;
+                    }
+                    records++;
+                }
+                return new Recording(name, reader.getColumns(), reader.getRows(), output, outputLength, types,
+                    deltaMicros, first, second, records);
+            }
+        }
+
+        /** The total number of output bytes in the recording. */
+        public int getOutputLength() {
+            return mOutputLength;
+        }
+    }
+
+    /** The outcome of one replay. */
+    public static final class Result {
+        /** The number of output bytes fed to the emulator. */
+        public long mBytes;
+        /** The number of bytes missing from the recording since the recorder could not keep up. */
+        public long mDroppedBytes;
+        /** The time spent replaying, including any waiting in real time mode. */
+        public long mNanos;
+        /** The bytes allocated by the replaying thread, or -1 if the JVM cannot tell. */
+        public long mAllocatedBytes;
+        /** In real time mode, the longest time the emulator fell behind the recording. */
+        public long mMaxLagNanos;
+        /** Bytes the emulator wrote back, e.g. in response to device status reports. */
+        public long mResponseBytes;
+        /** See {@link #checksum(TerminalEmulator)}. */
+        public long mChecksum;
+
+        public double megabytesPerSecond() {
+            return mNanos == 0 ? 0 : (mBytes / (1024. * 1024.)) / (mNanos / 1e9);
+        }
+
+        public long allocatedBytesPerMegabyte() {
+            return (mAllocatedBytes < 0 || mBytes == 0) ? -1 : (long) (mAllocatedBytes / (mBytes / (1024. * 1024.)));
+        }
+    }
+
+    /** Discards everything the emulator sends, counting the bytes written back to the would-be process. */
+    static final class CountingTerminalOutput extends TerminalOutput {
+        long mBytesWritten;
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            mBytesWritten += count;
+        }
+
+        @Override
+        public void clipboardText(String text) {
+        }
+
+        @Override
+        public void onBell() {
+        }
+    }
+
+    private TerminalReplay() {
+    }
+
+    /** Replay a recording into a fresh emulator of the recorded size. */
+    public static Result replay(Recording recording, boolean realTime) {
+        CountingTerminalOutput output = new CountingTerminalOutput();
+        TerminalEmulator emulator = new TerminalEmulator(output, recording.mColumns, recording.mRows, TRANSCRIPT_ROWS);
+        ByteBuffer view = ByteBuffer.wrap(recording.mOutput);
+        Result result = new Result();
+
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        long due = start;
+        int offset = 0;
+        for (int i = 0; i < recording.mRecords; i++) {
+            if (realTime) {
+                due += TimeUnit.MICROSECONDS.toNanos(recording.mDeltaMicros[i]);
+                long now;
+                while ((now = System.nanoTime()) < due) LockSupport.parkNanos(due - now);
+                result.mMaxLagNanos = Math.max(result.mMaxLagNanos, now - due);
+            }
+            switch (recording.mTypes[i]) {
+                case TerminalRecorder.RECORD_OUTPUT:
+                    int length = (int) recording.mFirst[i];
+                    view.limit(offset + length).position(offset);
+                    emulator.append(view);
+                    offset += length;
+                    break;
+                case TerminalRecorder.RECORD_RESIZE:
+                    emulator.resize((int) recording.mFirst[i], (int) recording.mSecond[i]);
+                    break;
+                case TerminalRecorder.RECORD_GAP:
+                    result.mDroppedBytes += recording.mFirst[i];
+                    break;
+            }
+        }
+        result.mNanos = System.nanoTime() - start;
+        final long allocatedAfter = allocatedBytes();
+
+        result.mBytes = offset;
+        result.mAllocatedBytes = (allocatedBefore < 0 || allocatedAfter < 0) ? -1 : allocatedAfter - allocatedBefore;
+        result.mResponseBytes = output.mBytesWritten;
+        result.mChecksum = checksum(emulator);
+        return result;
+    }
+
+    /**
+     * A CRC-32 of everything visible to the user: the text, line wrapping and style of each transcript and screen row,
+     * and the cursor. Only the public API is used, so that it stays comparable across changes to the row storage.
+     */
+    public static long checksum(TerminalEmulator emulator) {
+        TerminalBuffer screen = emulator.getScreen();
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[8];
+        update(crc, scratch, emulator.mColumns);
+        update(crc, scratch, emulator.mRows);
+        update(crc, scratch, emulator.getCursorCol());
+        update(crc, scratch, emulator.getCursorRow());
+        for (int row = -screen.getActiveTranscriptRows(); row < emulator.mRows; row++) {
+            String text = screen.getSelectedText(0, row, emulator.mColumns, row, false);
+            for (int i = 0; i < text.length(); i++) update(crc, scratch, text.charAt(i));
+            crc.update(screen.getLineWrap(row) ? 1 : 0);
+            for (int column = 0; column < emulator.mColumns; column++)
+                update(crc, scratch, screen.getStyleAt(row, column));
+        }
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, byte[] scratch, long value) {
+        for (int i = 0; i < 8; i++) scratch[i] = (byte) (value >>> (8 * i));
+        crc.update(scratch, 0, 8);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean) bean;
+            if (hotSpotBean.isThreadAllocatedMemorySupported() && hotSpotBean.isThreadAllocatedMemoryEnabled())
+                return hotSpotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean realTime = false;
+        int iterations = 1;
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("--"); first++) {
+            if (args[first].equals("--realtime")) {
+                realTime = true;
+            } else if (args[first].equals("--iterations") && first + 1 < args.length) {
+                iterations = Integer.parseInt(args[++first]);
+            } else {
+                first = args.length;
+            }
+        }
+        if (first >= args.length || iterations < 1) {
+            System.err.println("usage: TerminalReplay [--realtime] [--iterations N] recording...");
+            System.exit(2);
+        }
+
+        boolean consistent = true;
+        for (int i = first; i < args.length; i++) {
+            Recording recording;
+            try (InputStream in = new FileInputStream(args[i])) {
+                recording = Recording.load(args[i], in);
+            }
+            long expectedChecksum = -1;
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                Result result = replay(recording, realTime);
+                StringBuilder line = new StringBuilder(String.format(Locale.ROOT,
+                    "%s #%d: %d bytes in %.1f ms, %.2f MB/s, %d bytes allocated per MB, checksum %08x",
+                    recording.mName, iteration, result.mBytes, result.mNanos / 1e6, result.megabytesPerSecond(),
+                    result.allocatedBytesPerMegabyte(), result.mChecksum));
+                if (realTime)
+                    line.append(String.format(Locale.ROOT, ", max lag %.1f ms", result.mMaxLagNanos / 1e6));
+                if (result.mDroppedBytes > 0)
+                    line.append(", ").append(result.mDroppedBytes).append(" bytes missing from recording");
+                System.out.println(line);
+                if (expectedChecksum == -1) {
+                    expectedChecksum = result.mChecksum;
+                } else if (expectedChecksum != result.mChecksum) {
+                    System.out.println(recording.mName + ": checksum differs between iterations");
+                    consistent = false;
+                }
+            }
+        }
+        if (!consistent) System.exit(1);
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+*************************************************************************
+vShell - x86 Linux virtual shell application powered by QEMU.
+Copyright (C) 2019-2021  Leonid Pliushch <leonid.pliushch@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.virtshell.emulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Lookups per second of {@link WcWidth#width(int)} for code points from different parts of Unicode. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WcWidthBenchmark {
+
+    static final int CODE_POINTS = 4096;
+
+    /** The ranges "mixed" picks from. */
+    private static final String[] RANGES = {"ascii", "latin", "cjk", "emoji"};
+
+    @Param({"ascii", "latin", "cjk", "emoji", "mixed"})
+    public String range;
+
+    private final int[] mCodePoints = new int[CODE_POINTS];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(range.hashCode());
+        for (int i = 0; i < CODE_POINTS; i++) {
+            String kind = range.equals("mixed") ? RANGES[random.nextInt(RANGES.length)] : range;
+            switch (kind) {
+                case "ascii":
+                    mCodePoints[i] = 32 + random.nextInt(95);
+                    break;
+                case "latin":
+                    // Latin-1 supplement up to Cyrillic, including combining marks.
+                    mCodePoints[i] = 0xA0 + random.nextInt(0x500 - 0xA0);
+                    break;
+                case "cjk":
+                    mCodePoints[i] = 0x4E00 + random.nextInt(0x5000);
+                    break;
+                case "emoji":
+                    mCodePoints[i] = 0x1F300 + random.nextInt(0x300);
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CODE_POINTS)
+    public int width() {
+        final int[] codePoints = mCodePoints;
+        int total = 0;
+        for (int codePoint : codePoints)
+            total += WcWidth.width(codePoint);
+        return total;
+    }
+
+}